@@ -0,0 +1,87 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+
+import flatland.protobuf.PersistentProtocolBufferMap;
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+import flatland.protobuf.test.Core;
+
+/**
+ * Messages of different shapes built from the Foo type in test/core.proto: small (a couple of
+ * scalars), wide (every kind of repeated and extension field populated) and deep (a long chain
+ * of nested parents).
+ */
+public final class Fixtures {
+  public static final Def FOO =
+    Def.create(Core.Foo.getDescriptor(), Def.convertUnderscores, 64 * 1024 * 1024);
+
+  public static Keyword k(String name) {
+    return Keyword.intern(name);
+  }
+
+  public static IPersistentMap small() {
+    return RT.map(k("id"), 1, k("label"), "small");
+  }
+
+  public static IPersistentMap wide() {
+    List<Object> tags = new ArrayList<Object>();
+    List<Object> doubles = new ArrayList<Object>();
+    IPersistentMap attrs = RT.map();
+    IPersistentMap byId = RT.map();
+    IPersistentMap counts = RT.map();
+    for (int i = 0; i < 20; i++) {
+      tags.add("tag" + i);
+      doubles.add(i * 1.5);
+      attrs = attrs.assoc("attr" + i, "value" + i);
+      byId = byId.assoc(i, RT.map(k("label"), "foo" + i));
+      counts = counts.assoc("count" + i, RT.map(k("i"), i, k("d"), i * 0.5));
+    }
+    return RT.map(k("id"), 2, k("label"), "wide", k("tags"), PersistentVector.create(tags),
+                  k("doubles"), PersistentVector.create(doubles), k("lat"), 37.7, k("long"), -122.4,
+                  k("tag-set"), PersistentHashSet.create(tags), k("attr-map"), attrs,
+                  k("foo-by-id"), byId, k("counts"), counts,
+                  k("responses"), PersistentVector.create(k("yes"), k("no"), k("maybe")));
+  }
+
+  public static IPersistentMap deep() {
+    IPersistentMap m = RT.map(k("id"), 0, k("label"), "root");
+    for (int i = 1; i <= 16; i++) {
+      m = RT.map(k("id"), i, k("label"), "level" + i, k("parent"), m);
+    }
+    return m;
+  }
+
+  public static IPersistentMap shape(String name) {
+    if ("small".equals(name)) {
+      return small();
+    } else if ("wide".equals(name)) {
+      return wide();
+    } else if ("deep".equals(name)) {
+      return deep();
+    }
+    throw new IllegalArgumentException("unknown fixture " + name);
+  }
+
+  public static PersistentProtocolBufferMap proto(String name) {
+    return PersistentProtocolBufferMap.construct(FOO, shape(name));
+  }
+
+  private Fixtures() {}
+}
@@ -0,0 +1,104 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import clojure.lang.IMapEntry;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.Keyword;
+
+import flatland.protobuf.PersistentProtocolBufferMap;
+
+/**
+ * Parsing, building, reading and serializing single messages. Run with -prof gc (the default for
+ * lein bench) to get allocation rates alongside throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MapBenchmark {
+  @Param({"small", "wide", "deep"})
+  public String shape;
+
+  IPersistentMap map;
+  PersistentProtocolBufferMap proto;
+  byte[] bytes;
+
+  static final Keyword ID = Fixtures.k("id");
+  static final Keyword LABEL = Fixtures.k("label");
+  static final Keyword PARENT = Fixtures.k("parent");
+
+  @Setup
+  public void setup() {
+    map = Fixtures.shape(shape);
+    proto = PersistentProtocolBufferMap.construct(Fixtures.FOO, map);
+    bytes = proto.toByteArray();
+  }
+
+  @Benchmark
+  public PersistentProtocolBufferMap create() throws Exception {
+    return PersistentProtocolBufferMap.create(Fixtures.FOO, bytes);
+  }
+
+  @Benchmark
+  public PersistentProtocolBufferMap construct() {
+    return PersistentProtocolBufferMap.construct(Fixtures.FOO, map);
+  }
+
+  @Benchmark
+  public void valAt(Blackhole bh) throws Exception {
+    // a fresh map each time, so that per-instance value caching doesn't hide conversion cost
+    PersistentProtocolBufferMap p = PersistentProtocolBufferMap.create(Fixtures.FOO, bytes);
+    bh.consume(p.valAt(ID));
+    bh.consume(p.valAt(LABEL));
+    bh.consume(p.valAt(PARENT));
+  }
+
+  @Benchmark
+  public Object valAtCached() {
+    return proto.valAt(LABEL);
+  }
+
+  @Benchmark
+  public PersistentProtocolBufferMap assoc() {
+    return proto.assoc(LABEL, "changed").assoc(ID, 99);
+  }
+
+  @Benchmark
+  public void seq(Blackhole bh) throws Exception {
+    PersistentProtocolBufferMap p = PersistentProtocolBufferMap.create(Fixtures.FOO, bytes);
+    for (ISeq s = p.seq(); s != null; s = s.next()) {
+      bh.consume(((IMapEntry)s.first()).val());
+    }
+  }
+
+  @Benchmark
+  public int count() {
+    return proto.count();
+  }
+
+  @Benchmark
+  public byte[] toByteArray() throws Exception {
+    return PersistentProtocolBufferMap.create(Fixtures.FOO, bytes).toByteArray();
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+
+import flatland.protobuf.PersistentProtocolBufferMap;
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+import flatland.protobuf.test.Core;
+
+/**
+ * Nested message reads, which resolve the Def of the nested type through the Def cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NestedReadBenchmark {
+  static final Keyword ID = Keyword.intern("id");
+  static final Keyword PARENT = Keyword.intern("parent");
+  static final Keyword LABEL = Keyword.intern("label");
+
+  Def def;
+  byte[] bytes;
+
+  @Setup
+  public void setup() {
+    def = Def.create(Core.Foo.getDescriptor(), Def.convertUnderscores, 64 * 1024 * 1024);
+    Object grandparent = RT.map(ID, 3, LABEL, "grandparent");
+    Object parent = RT.map(ID, 2, LABEL, "parent", PARENT, grandparent);
+    bytes = PersistentProtocolBufferMap.construct(def, RT.map(ID, 1, PARENT, parent)).toByteArray();
+  }
+
+  @Benchmark
+  public Def defCreate() {
+    return Def.create(Core.Foo.getDescriptor(), Def.convertUnderscores, 64 * 1024 * 1024);
+  }
+
+  @Benchmark
+  public Object nestedRead() throws Exception {
+    PersistentProtocolBufferMap p = PersistentProtocolBufferMap.create(def, bytes);
+    PersistentProtocolBufferMap parent = (PersistentProtocolBufferMap)p.valAt(PARENT);
+    PersistentProtocolBufferMap grandparent = (PersistentProtocolBufferMap)parent.valAt(PARENT);
+    return grandparent.valAt(LABEL);
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.protobuf.CodedInputStream;
+
+import flatland.protobuf.DelimitedWriter;
+import flatland.protobuf.PersistentProtocolBufferMap;
+
+/**
+ * Writing and reading streams of length-delimited messages, reported per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamBenchmark {
+  static final int MESSAGES = 1000;
+
+  @Param({"small", "wide", "deep"})
+  public String shape;
+
+  PersistentProtocolBufferMap proto;
+  byte[] stream;
+
+  static final OutputStream NULL_OUTPUT = new OutputStream() {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  };
+
+  @Setup
+  public void setup() throws IOException {
+    proto = Fixtures.proto(shape);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < MESSAGES; i++) {
+      proto.writeDelimitedTo(out);
+    }
+    stream = out.toByteArray();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public void writeDelimitedTo() throws IOException {
+    for (int i = 0; i < MESSAGES; i++) {
+      proto.writeDelimitedTo(NULL_OUTPUT);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public void delimitedWriter() throws IOException {
+    DelimitedWriter writer = new DelimitedWriter(NULL_OUTPUT);
+    for (int i = 0; i < MESSAGES; i++) {
+      writer.write(proto);
+    }
+    writer.finish();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public void parseDelimitedFromStream(Blackhole bh) throws IOException {
+    ByteArrayInputStream in = new ByteArrayInputStream(stream);
+    PersistentProtocolBufferMap p;
+    while ((p = PersistentProtocolBufferMap.parseDelimitedFrom(Fixtures.FOO, in)) != null) {
+      bh.consume(p);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public void parseDelimitedFromCoded(Blackhole bh) throws IOException {
+    CodedInputStream in = CodedInputStream.newInstance(stream);
+    PersistentProtocolBufferMap p;
+    while ((p = PersistentProtocolBufferMap.parseDelimitedFrom(Fixtures.FOO, in)) != null) {
+      bh.consume(p);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import com.google.protobuf.Descriptors;
+
+import flatland.protobuf.Metrics;
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+
+/**
+ * Emits a JFR event for every event Metrics records. Operation and conversion events begin when
+ * the work starts and end when it is done, so their duration is the time the work took.
+ *
+ * Metrics installs it by default when it is on the classpath, so building with the jfr profile
+ * is enough to see protobuf work in flight recordings once metrics are enabled. Needs a JVM with
+ * jdk.jfr (JDK 11, or 8u262 and later).
+ */
+public class JfrListener implements Metrics.Listener {
+  @Name("flatland.protobuf.Operation")
+  @Label("Protobuf Operation")
+  @Category("Protobuf")
+  static class OperationEvent extends Event {
+    @Label("Message Type")
+    String messageType;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("flatland.protobuf.Conversion")
+  @Label("Protobuf Field Conversion")
+  @Category("Protobuf")
+  static class ConversionEvent extends Event {
+    @Label("Field")
+    String field;
+  }
+
+  @Name("flatland.protobuf.ExtFallback")
+  @Label("Protobuf Extension Fallback")
+  @Category("Protobuf")
+  static class ExtFallbackEvent extends Event {
+    @Label("Message Type")
+    String messageType;
+
+    @Label("Key")
+    String key;
+  }
+
+  public Object begin(Def def, Metrics.Op op) {
+    Event event = (op == Metrics.Op.CONVERT) ? new ConversionEvent() : new OperationEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  public void end(Object token, Def def, Metrics.Op op, Descriptors.FieldDescriptor field,
+                  long nanos, long bytes) {
+    Event event = (Event)token;
+    event.end();
+    if (event.shouldCommit()) {
+      if (event instanceof ConversionEvent) {
+        ((ConversionEvent)event).field = field.getFullName();
+      } else {
+        OperationEvent e = (OperationEvent)event;
+        e.messageType = def.getFullName();
+        e.operation = op.name();
+        e.bytes = bytes;
+      }
+      event.commit();
+    }
+  }
+
+  public void extFallback(Def def, Object key) {
+    ExtFallbackEvent event = new ExtFallbackEvent();
+    if (event.isEnabled()) {
+      event.messageType = def.getFullName();
+      event.key = String.valueOf(key);
+      event.commit();
+    }
+  }
+}
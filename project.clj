@@ -9,10 +9,15 @@
                  [org.flatland/io "0.3.0"]
                  [ordered-collections "0.4.0"]]
   :plugins [[lein-protobuf "0.4.1"]]
-  :aliases {"testall" ["with-profile" "dev,default:dev,1.3,default:dev,1.5,default" "test"]}
+  :aliases {"testall" ["with-profile" "dev,default:dev,1.3,default:dev,1.5,default" "test"]
+            "bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main" "-prof" "gc"]}
   :profiles {:1.3 {:dependencies [[org.clojure/clojure "1.3.0"]]}
              :1.5 {:dependencies [[org.clojure/clojure "1.5.0-master-SNAPSHOT"]]}
-             :dev {:dependencies [[gloss "0.2.1"]]}}
+             :dev {:dependencies [[gloss "0.2.1"]]}
+             :bench {:java-source-paths ["bench"]
+                     :dependencies [[org.openjdk.jmh/jmh-core "1.21"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.21"]]}
+             :jfr {:java-source-paths ["jfr"]}}
   :repositories {"sonatype-snapshots" {:url "http://oss.sonatype.org/content/repositories/snapshots"
                                        :snapshots true
                                        :releases {:checksum :fail :update :always}}}
@@ -0,0 +1,81 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * An InputStream over the remaining bytes of a ByteBuffer, or of a sequence of them, advancing
+ * their positions. Used to stream the buffer sequences gloss frames are made of to a
+ * CodedInputStream, which copies them into its own buffer a chunk at a time, instead of first
+ * joining them into one array.
+ */
+public class ByteBufferInputStream extends InputStream {
+  private ByteBuffer buffer;
+  private final Iterator<ByteBuffer> buffers;
+
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.buffers = Collections.<ByteBuffer>emptyList().iterator();
+  }
+
+  public ByteBufferInputStream(Iterator<ByteBuffer> buffers) {
+    this.buffers = buffers;
+    this.buffer = buffers.hasNext() ? buffers.next() : ByteBuffer.allocate(0);
+  }
+
+  // move on to the next buffer with bytes left, returning false at the end of the last one
+  private boolean advance() {
+    while (!buffer.hasRemaining()) {
+      if (!buffers.hasNext()) {
+        return false;
+      }
+      buffer = buffers.next();
+    }
+    return true;
+  }
+
+  @Override
+  public int read() {
+    return advance() ? (buffer.get() & 0xff) : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) {
+    if (length == 0) {
+      return 0;
+    }
+    if (!advance()) {
+      return -1;
+    }
+    int n = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    if (n <= 0 || !advance()) {
+      return 0;
+    }
+    int skipped = (int)Math.min(n, buffer.remaining());
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+}
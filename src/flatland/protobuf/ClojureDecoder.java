@@ -0,0 +1,352 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ordered_map.core.OrderedMap;
+import ordered_set.core.OrderedSet;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.ITransientMap;
+import clojure.lang.ITransientSet;
+import clojure.lang.Numbers;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentVector;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+
+/**
+ * Decodes the wire format straight into plain Clojure data, without building a DynamicMessage
+ * first. The result is what converting the equivalent PersistentProtocolBufferMap into plain
+ * maps would give: the same keys, default values and set/map/map_by/counter/succession/nullable
+ * semantics.
+ *
+ * Decoding happens in two steps. Reading fills one slot per field for every message, following
+ * protobuf merge rules (repeated fields append, nested messages merge, other fields overwrite).
+ * Conversion then turns the slots into Clojure values, applying the extensions.
+ */
+public final class ClojureDecoder {
+  private ClojureDecoder() {}
+
+  public static Object parseFrom(Def def, byte[] bytes) throws IOException {
+    return parseFrom(def, CodedInputStream.newInstance(bytes));
+  }
+
+  public static Object parseFrom(Def def, CodedInputStream in) throws IOException {
+    in.setSizeLimit(def.sizeLimit);
+    return toClojure(def, read(def, in, null));
+  }
+
+  /**
+   * Read one length-delimited message from in, or return null at the end of input.
+   */
+  public static Object parseDelimitedFrom(Def def, CodedInputStream in) throws IOException {
+    if (in.isAtEnd()) {
+      return null;
+    }
+    in.resetSizeCounter();
+    in.setSizeLimit(def.sizeLimit);
+    int size = in.readRawVarint32();
+    int oldLimit = in.pushLimit(size);
+    Object[] slots = read(def, in, null);
+    in.checkLastTagWas(0);
+    in.popLimit(oldLimit);
+    return toClojure(def, slots);
+  }
+
+  // Reading
+
+  @SuppressWarnings("unchecked")
+  static Object[] read(Def def, CodedInputStream in, Object[] slots) throws IOException {
+    if (slots == null) {
+      slots = new Object[def.plans().length];
+    }
+    while (true) {
+      int tag = in.readTag();
+      if (tag == 0) {
+        return slots;
+      }
+      Def.FieldPlan plan = def.planByNumber(Wire.fieldNumber(tag));
+      if (plan == null) {
+        if (!in.skipField(tag)) {
+          return slots;
+        }
+        continue;
+      }
+      Descriptors.FieldDescriptor field = plan.field;
+      int i = field.getIndex();
+      if (field.isRepeated()) {
+        List<Object> values = (List<Object>)slots[i];
+        if (values == null) {
+          values = isPrimitive(plan) ? new PrimitiveVector.Buffer(field) : new ArrayList<Object>();
+          slots[i] = values;
+        }
+        if (values instanceof PrimitiveVector.Buffer) {
+          // numeric values go straight into a primitive array, packed or not
+          PrimitiveVector.Buffer buffer = (PrimitiveVector.Buffer)values;
+          if (Wire.wireType(tag) == Wire.LENGTH_DELIMITED) {
+            int oldLimit = in.pushLimit(in.readRawVarint32());
+            while (in.getBytesUntilLimit() > 0) {
+              buffer.read(in);
+            }
+            in.popLimit(oldLimit);
+          } else {
+            buffer.read(in);
+          }
+        } else if (Wire.wireType(tag) == Wire.LENGTH_DELIMITED && Wire.isPackable(field)) {
+          int oldLimit = in.pushLimit(in.readRawVarint32());
+          while (in.getBytesUntilLimit() > 0) {
+            add(values, Wire.readScalar(in, field));
+          }
+          in.popLimit(oldLimit);
+        } else {
+          add(values, readValue(plan, in, null));
+        }
+      } else {
+        Object value = readValue(plan, in, slots[i]);
+        if (value != null) {
+          slots[i] = value;
+        }
+      }
+    }
+  }
+
+  // plain repeated numeric fields that are never converted to nil
+  private static boolean isPrimitive(Def.FieldPlan plan) {
+    return plan.kind == Def.Kind.PLAIN && !plan.nullable
+      && PrimitiveVector.isNumeric(plan.field.getJavaType());
+  }
+
+  private static void add(List<Object> values, Object value) {
+    if (value != null) {
+      values.add(value);
+    }
+  }
+
+  private static Object readValue(Def.FieldPlan plan, CodedInputStream in, Object existing)
+          throws IOException {
+    if (plan.field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+      return Wire.readScalar(in, plan.field);
+    }
+    if (plan.field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+      throw new InvalidProtocolBufferException("groups are not supported: " + plan.field.getFullName());
+    }
+    int oldLimit = in.pushLimit(in.readRawVarint32());
+    // a nested message that appears more than once is merged into the existing one
+    Object[] slots = read(plan.messageDef(), in, (Object[])existing);
+    in.checkLastTagWas(0);
+    in.popLimit(oldLimit);
+    return slots;
+  }
+
+  /**
+   * Merge right into a copy of left, the way Message.Builder.mergeFrom would.
+   */
+  @SuppressWarnings("unchecked")
+  static Object[] merge(Def def, Object[] left, Object[] right) {
+    Object[] slots = left.clone();
+    Def.FieldPlan[] plans = def.plans();
+    for (int i = 0; i < slots.length; i++) {
+      Object r = right[i];
+      if (r == null) {
+        continue;
+      }
+      Object l = slots[i];
+      if (l == null) {
+        slots[i] = r;
+      } else if (l instanceof PrimitiveVector.Buffer) {
+        slots[i] = ((PrimitiveVector.Buffer)l).concat((PrimitiveVector.Buffer)r);
+      } else if (plans[i].field.isRepeated()) {
+        List<Object> values = new ArrayList<Object>((List<Object>)l);
+        values.addAll((List<Object>)r);
+        slots[i] = values;
+      } else if (r instanceof Object[]) {
+        slots[i] = merge(plans[i].messageDef(), (Object[])l, (Object[])r);
+      } else {
+        slots[i] = r;
+      }
+    }
+    return slots;
+  }
+
+  // Conversion
+
+  static Object toClojure(Def def, Object[] slots) {
+    ITransientMap map = (ITransientMap)PersistentArrayMap.EMPTY.asTransient();
+    for (Def.FieldPlan plan : def.plans()) {
+      Descriptors.FieldDescriptor field = plan.field;
+      Object raw = slots[field.getIndex()];
+      if (raw == null) {
+        if (!field.isRepeated() && field.hasDefaultValue()) {
+          map = map.assoc(plan.key, convert(plan, field.getDefaultValue()));
+        }
+      } else if (field.isRepeated()) {
+        List<?> values = (List<?>)raw;
+        if (!values.isEmpty()) {
+          map = map.assoc(plan.key, convertRepeated(plan, values));
+        }
+      } else {
+        map = map.assoc(plan.key, convert(plan, raw));
+      }
+    }
+    return map.persistent();
+  }
+
+  // the converted value of a singular field as valAt would see it, including unset defaults
+  private static Object fieldValue(Def def, Object[] slots, Object key) {
+    Def.FieldPlan plan = def.fieldPlan(key);
+    if (plan == null) {
+      return null;
+    }
+    Object raw = slots[plan.field.getIndex()];
+    if (raw != null) {
+      return plan.field.isRepeated() ? convertRepeated(plan, (List<?>)raw) : convert(plan, raw);
+    } else if (!plan.field.isRepeated() && plan.field.hasDefaultValue()) {
+      return convert(plan, plan.field.getDefaultValue());
+    }
+    return null;
+  }
+
+  private static Object convert(Def.FieldPlan plan, Object raw) {
+    switch (plan.field.getJavaType()) {
+      case MESSAGE:
+        return toClojure(plan.messageDef(), (Object[])raw);
+      case ENUM:
+        Descriptors.EnumValueDescriptor e = (Descriptors.EnumValueDescriptor)raw;
+        return plan.isNull(e.getNumber()) ? null : plan.def.clojureEnumValue(e);
+      default:
+        return plan.isNull(raw) ? null : raw;
+    }
+  }
+
+  // the raw value of a field of a map or set entry, falling back to the field's default
+  private static Object entryField(Def.FieldPlan plan, Object[] entry) {
+    Object raw = entry[plan.field.getIndex()];
+    if (raw != null || plan.field.isRepeated()) {
+      return raw;
+    } else if (plan.field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+      return new Object[plan.messageDef().plans().length];
+    } else {
+      return plan.field.getDefaultValue();
+    }
+  }
+
+  private static Object mapValue(Def.FieldPlan plan, Def valDef, Object[] left, Object[] right) {
+    if (left == null) {
+      return right;
+    }
+    if (plan.mapExists != null) {
+      if (fieldValue(valDef, left, plan.mapExists) == Boolean.FALSE &&
+          fieldValue(valDef, right, plan.mapExists) == Boolean.TRUE) {
+        return right;
+      }
+    } else if (plan.mapDeleted != null) {
+      if (fieldValue(valDef, left, plan.mapDeleted) == Boolean.TRUE &&
+          fieldValue(valDef, right, plan.mapDeleted) == Boolean.FALSE) {
+        return right;
+      }
+    }
+    return merge(valDef, left, right);
+  }
+
+  private static Object convertRepeated(Def.FieldPlan plan, List<?> values) {
+    switch (plan.kind) {
+      case MAP_BY: {
+        Def valDef = plan.messageDef();
+        Map<Object, Object[]> entries = new LinkedHashMap<Object, Object[]>();
+        for (Object value : values) {
+          Object[] slots = (Object[])value;
+          Object k = fieldValue(valDef, slots, plan.mapBy);
+          entries.put(k, (Object[])mapValue(plan, valDef, entries.get(k), slots));
+        }
+        ITransientMap map = (ITransientMap)OrderedMap.EMPTY.asTransient();
+        for (Map.Entry<Object, Object[]> e : entries.entrySet()) {
+          map = map.assoc(e.getKey(), toClojure(valDef, e.getValue()));
+        }
+        return map.persistent();
+      }
+      case COUNTER: {
+        Object count = values.get(0);
+        for (int i = 1; i < values.size(); i++) {
+          count = Numbers.add(count, values.get(i));
+        }
+        return count;
+      }
+      case SUCCESSION:
+        return convert(plan, values.get(values.size() - 1));
+      case MAP: {
+        Def.FieldPlan keyPlan = plan.keyPlan;
+        Def.FieldPlan valPlan = plan.valPlan;
+        boolean messages = !valPlan.field.isRepeated()
+          && valPlan.field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE;
+        Def valDef = messages ? valPlan.messageDef() : null;
+
+        Map<Object, Object> entries = new LinkedHashMap<Object, Object>();
+        for (Object value : values) {
+          Object[] entry = (Object[])value;
+          Object k = convert(keyPlan, entryField(keyPlan, entry));
+          Object raw = entryField(valPlan, entry);
+          Object existing = entries.get(k);
+          if (messages) {
+            entries.put(k, mapValue(plan, valDef, (Object[])existing, (Object[])raw));
+          } else {
+            Object v = (raw == null) ? PersistentVector.EMPTY
+              : valPlan.field.isRepeated() ? convertRepeated(valPlan, (List<?>)raw)
+              : convert(valPlan, raw);
+            if (existing instanceof IPersistentCollection) {
+              entries.put(k, ((IPersistentCollection)existing).cons(v));
+            } else {
+              entries.put(k, v);
+            }
+          }
+        }
+        ITransientMap map = (ITransientMap)OrderedMap.EMPTY.asTransient();
+        for (Map.Entry<Object, Object> e : entries.entrySet()) {
+          Object v = messages ? toClojure(valDef, (Object[])e.getValue()) : e.getValue();
+          map = map.assoc(e.getKey(), v);
+        }
+        return map.persistent();
+      }
+      case SET: {
+        ITransientSet set = (ITransientSet)OrderedSet.EMPTY.asTransient();
+        for (Object value : values) {
+          Object[] entry = (Object[])value;
+          Object item = convert(plan.itemPlan, entryField(plan.itemPlan, entry));
+          if ((Boolean)entryField(plan.existsPlan, entry)) {
+            set = (ITransientSet)set.conj(item);
+          } else {
+            // disjoining an item that was never added leaves the set as it is
+            set = set.disjoin(item);
+          }
+        }
+        return set.persistent();
+      }
+      default: {
+        if (values instanceof PrimitiveVector.Buffer) {
+          return ((PrimitiveVector.Buffer)values).toVector();
+        }
+        List<Object> list = new ArrayList<Object>(values.size());
+        for (Object value : values) {
+          list.add(convert(plan, value));
+        }
+        return PersistentVector.create(list);
+      }
+    }
+  }
+}
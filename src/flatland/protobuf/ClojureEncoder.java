@@ -0,0 +1,409 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.RT;
+import clojure.lang.Sequential;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.UninitializedMessageException;
+
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+
+/**
+ * Encodes plain Clojure data straight into the wire format, without building a DynamicMessage
+ * first. The bytes are the same as constructing a PersistentProtocolBufferMap from the data and
+ * serializing it: the same key lookup, nullable values and set/map/map_by entries.
+ *
+ * Encoding happens in two passes. The first converts the data into a tree of nodes, one per
+ * message, and computes each node's size once. The second writes the tree into a byte array of
+ * exactly that size.
+ */
+public final class ClojureEncoder {
+  private ClojureEncoder() {}
+
+  public static byte[] encode(Def def, Object data) throws IOException {
+    Metrics.Timer timer = def.metrics.start(Metrics.Op.SERIALIZE);
+    Node node = node(def, data);
+    byte[] bytes = new byte[node.size()];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    node.writeTo(out);
+    out.checkNoSpaceLeft();
+    if (timer != null) {
+      timer.stop(bytes.length);
+    }
+    return bytes;
+  }
+
+  public static void writeTo(Def def, Object data, CodedOutputStream out) throws IOException {
+    Metrics.Timer timer = def.metrics.start(Metrics.Op.SERIALIZE);
+    Node node = node(def, data);
+    node.writeTo(out);
+    if (timer != null) {
+      timer.stop(node.size());
+    }
+  }
+
+  /**
+   * Write data prefixed with its size, as parseDelimitedFrom expects it.
+   */
+  public static void writeDelimitedTo(Def def, Object data, CodedOutputStream out)
+      throws IOException {
+    Metrics.Timer timer = def.metrics.start(Metrics.Op.SERIALIZE);
+    Node node = node(def, data);
+    out.writeRawVarint32(node.size());
+    node.writeTo(out);
+    if (timer != null) {
+      timer.stop(node.size());
+    }
+  }
+
+  /**
+   * An encoded message: either one converted from Clojure data, with a value per field (a List,
+   * or a PrimitiveVector of matching numeric type, for repeated fields), or an existing protobuf
+   * that already knows how to write itself.
+   */
+  static final class Node {
+    final Def def;
+    final Object[] values;
+    final PersistentProtocolBufferMap proto;
+    private int size = -1;
+
+    Node(Def def) {
+      this.def = def;
+      this.values = new Object[def.plans().length];
+      this.proto = null;
+    }
+
+    Node(PersistentProtocolBufferMap proto) {
+      this.def = proto.def;
+      this.values = null;
+      this.proto = proto;
+    }
+
+    int size() {
+      if (size < 0) {
+        if (proto != null) {
+          size = proto.getSerializedSize();
+        } else {
+          int total = 0;
+          for (Def.FieldPlan plan : def.plansInNumberOrder()) {
+            Object value = values[plan.field.getIndex()];
+            if (value == null) {
+              continue;
+            }
+            Descriptors.FieldDescriptor field = plan.field;
+            if (!field.isRepeated()) {
+              total += elementSize(field, value);
+            } else if (value instanceof PrimitiveVector) {
+              total += primitivesSize(field, (PrimitiveVector)value);
+            } else if (field.isPacked()) {
+              List<?> list = (List<?>)value;
+              if (!list.isEmpty()) {
+                int data = packedSize(field, list);
+                total += CodedOutputStream.computeTagSize(field.getNumber())
+                  + CodedOutputStream.computeRawVarint32Size(data) + data;
+              }
+            } else {
+              for (Object item : (List<?>)value) {
+                total += elementSize(field, item);
+              }
+            }
+          }
+          size = total;
+        }
+      }
+      return size;
+    }
+
+    void writeTo(CodedOutputStream out) throws IOException {
+      if (proto != null) {
+        // nested in the encode call being recorded, so not recorded again
+        proto.writeUnrecorded(out);
+        return;
+      }
+      for (Def.FieldPlan plan : def.plansInNumberOrder()) {
+        Object value = values[plan.field.getIndex()];
+        if (value == null) {
+          continue;
+        }
+        Descriptors.FieldDescriptor field = plan.field;
+        if (!field.isRepeated()) {
+          writeElement(out, field, value);
+        } else if (value instanceof PrimitiveVector) {
+          writePrimitives(out, field, (PrimitiveVector)value);
+        } else if (field.isPacked()) {
+          List<?> list = (List<?>)value;
+          if (!list.isEmpty()) {
+            out.writeTag(field.getNumber(), Wire.LENGTH_DELIMITED);
+            out.writeRawVarint32(packedSize(field, list));
+            for (Object item : list) {
+              Wire.writeNoTag(out, field.getType(), item);
+            }
+          }
+        } else {
+          for (Object item : (List<?>)value) {
+            writeElement(out, field, item);
+          }
+        }
+      }
+    }
+  }
+
+  private static int elementSize(Descriptors.FieldDescriptor field, Object value) {
+    int tagSize = CodedOutputStream.computeTagSize(field.getNumber());
+    if (value instanceof Node) {
+      int size = ((Node)value).size();
+      return tagSize + CodedOutputStream.computeRawVarint32Size(size) + size;
+    }
+    return tagSize + Wire.sizeNoTag(field.getType(), value);
+  }
+
+  private static int packedSize(Descriptors.FieldDescriptor field, List<?> list) {
+    int size = 0;
+    for (Object item : list) {
+      size += Wire.sizeNoTag(field.getType(), item);
+    }
+    return size;
+  }
+
+  private static int primitivesDataSize(Descriptors.FieldDescriptor field, PrimitiveVector v) {
+    Descriptors.FieldDescriptor.Type type = field.getType();
+    int size = 0;
+    for (int i = 0; i < v.count(); i++) {
+      size += v.sizeNoTag(type, i);
+    }
+    return size;
+  }
+
+  private static int primitivesSize(Descriptors.FieldDescriptor field, PrimitiveVector v) {
+    if (v.count() == 0) {
+      return 0;
+    }
+    int data = primitivesDataSize(field, v);
+    int tagSize = CodedOutputStream.computeTagSize(field.getNumber());
+    if (field.isPacked()) {
+      return tagSize + CodedOutputStream.computeRawVarint32Size(data) + data;
+    } else {
+      return tagSize * v.count() + data;
+    }
+  }
+
+  private static void writePrimitives(CodedOutputStream out, Descriptors.FieldDescriptor field,
+                                      PrimitiveVector v) throws IOException {
+    if (v.count() == 0) {
+      return;
+    }
+    Descriptors.FieldDescriptor.Type type = field.getType();
+    if (field.isPacked()) {
+      out.writeTag(field.getNumber(), Wire.LENGTH_DELIMITED);
+      out.writeRawVarint32(primitivesDataSize(field, v));
+      for (int i = 0; i < v.count(); i++) {
+        v.writeNoTag(out, type, i);
+      }
+    } else {
+      int wireType = Wire.wireType(type);
+      for (int i = 0; i < v.count(); i++) {
+        out.writeTag(field.getNumber(), wireType);
+        v.writeNoTag(out, type, i);
+      }
+    }
+  }
+
+  private static void writeElement(CodedOutputStream out, Descriptors.FieldDescriptor field,
+                                   Object value) throws IOException {
+    if (value instanceof Node) {
+      Node node = (Node)value;
+      out.writeTag(field.getNumber(), Wire.LENGTH_DELIMITED);
+      out.writeRawVarint32(node.size());
+      node.writeTo(out);
+    } else {
+      out.writeTag(field.getNumber(), Wire.wireType(field.getType()));
+      Wire.writeNoTag(out, field.getType(), value);
+    }
+  }
+
+  // Conversion
+
+  static Node node(Def def, Object data) {
+    if (data instanceof PersistentProtocolBufferMap
+        && ((PersistentProtocolBufferMap)data).def.type == def.type) {
+      return new Node((PersistentProtocolBufferMap)data);
+    }
+    Node node = new Node(def);
+    for (ISeq s = RT.seq(data); s != null; s = s.next()) {
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
+      addField(node, e.getKey(), e.getValue());
+    }
+    checkInitialized(node);
+    return node;
+  }
+
+  private static void checkInitialized(Node node) {
+    List<String> missing = null;
+    for (Def.FieldPlan plan : node.def.plans()) {
+      if (plan.field.isRequired() && node.values[plan.field.getIndex()] == null) {
+        if (missing == null) {
+          missing = new ArrayList<String>();
+        }
+        missing.add(plan.field.getName());
+      }
+    }
+    if (missing != null) {
+      throw new UninitializedMessageException(missing);
+    }
+  }
+
+  private static void addField(Node node, Object key, Object value) {
+    if (key == null) {
+      return;
+    }
+    Def.FieldPlan plan = node.def.fieldPlan(key);
+    if (plan == null || (value == null && !plan.nullable)) {
+      return;
+    }
+    Descriptors.FieldDescriptor field = plan.field;
+    int index = field.getIndex();
+
+    if (!field.isRepeated()) {
+      node.values[index] = value(plan, value, false);
+      return;
+    }
+
+    PrimitiveVector primitives = PrimitiveVector.wrap(value);
+    if (primitives != null) {
+      value = primitives;
+    }
+    if (value instanceof PrimitiveVector && !plan.set
+        && ((PrimitiveVector)value).javaType() == field.getJavaType()) {
+      // written straight from the primitive array, without boxing
+      node.values[index] = value;
+      return;
+    }
+
+    List<Object> list = new ArrayList<Object>();
+    if (value instanceof Sequential && !plan.set) {
+      for (ISeq s = RT.seq(value); s != null; s = s.next()) {
+        list.add(value(plan, s.first(), true));
+      }
+    } else if (plan.mapBy != null) {
+      for (ISeq s = RT.seq(value); s != null; s = s.next()) {
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
+        IPersistentMap map = (IPersistentMap)e.getValue();
+        Object k = e.getKey();
+        list.add(value(plan, map.assoc(plan.mapBy, k).assoc(plan.mapByName, k), true));
+      }
+    } else if (plan.map) {
+      for (ISeq s = RT.seq(value); s != null; s = s.next()) {
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
+        Object[] entry = {PersistentProtocolBufferMap.k_key, e.getKey(),
+                          PersistentProtocolBufferMap.k_val, e.getValue()};
+        list.add(value(plan, new PersistentArrayMap(entry), true));
+      }
+    } else if (plan.set) {
+      boolean isMap = (value instanceof IPersistentMap);
+      for (ISeq s = RT.seq(value); s != null; s = s.next()) {
+        Object k, v;
+        if (isMap) {
+          Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
+          k = e.getKey();
+          v = e.getValue();
+        } else {
+          k = s.first();
+          v = true;
+        }
+        Object[] entry = {PersistentProtocolBufferMap.k_item, k,
+                          PersistentProtocolBufferMap.k_exists, v};
+        list.add(value(plan, new PersistentArrayMap(entry), true));
+      }
+    } else {
+      list.add(value(plan, value, true));
+    }
+    node.values[index] = list;
+  }
+
+  /**
+   * Convert a single value the same way PersistentProtocolBufferMap.toProtoValue does, checking
+   * the types that DynamicMessage would otherwise reject when the value is set.
+   */
+  private static Object value(Def.FieldPlan plan, Object value, boolean adding) {
+    Descriptors.FieldDescriptor field = plan.field;
+    if (value == null && plan.nullable) {
+      if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM) {
+        if (plan.nullEnumValue == null) {
+          throw invalid(field, plan.nullValue, adding);
+        }
+        return plan.nullEnumValue;
+      }
+      value = plan.nullValue;
+    }
+
+    switch (field.getJavaType()) {
+      case LONG:
+        return ((Number)value).longValue();
+      case INT:
+        return ((Number)value).intValue();
+      case FLOAT:
+        return ((Number)value).floatValue();
+      case DOUBLE:
+        return ((Number)value).doubleValue();
+      case BOOLEAN:
+        if (value instanceof Boolean) {
+          return value;
+        }
+        throw invalid(field, value, adding);
+      case STRING:
+        if (value instanceof String) {
+          return value;
+        }
+        throw invalid(field, value, adding);
+      case BYTE_STRING:
+        if (value instanceof ByteString) {
+          return value;
+        }
+        throw invalid(field, value, adding);
+      case ENUM:
+        String name = plan.def.namingStrategy.protoName(value);
+        Descriptors.EnumDescriptor enum_type = field.getEnumType();
+        Descriptors.EnumValueDescriptor enum_value = enum_type.findValueByName(name);
+        if (enum_value == null) {
+          PrintWriter err = (PrintWriter)RT.ERR.deref();
+          err.format("invalid enum value %s for enum type %s\n", name, enum_type.getFullName());
+          throw invalid(field, value, adding);
+        }
+        return enum_value;
+      case MESSAGE:
+        return node(plan.messageDef(), value);
+      default:
+        return value;
+    }
+  }
+
+  private static IllegalArgumentException invalid(Descriptors.FieldDescriptor field, Object value,
+                                                  boolean adding) {
+    String type = field.getJavaType().toString().toLowerCase();
+    String msg = adding
+      ? String.format("error adding %s to %s field %s", value, type, field.getFullName())
+      : String.format("error setting %s field %s to %s", type, field.getFullName(), value);
+    return new IllegalArgumentException(msg);
+  }
+}
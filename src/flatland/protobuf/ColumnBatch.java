@@ -0,0 +1,512 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+
+/**
+ * Singular scalar fields of many serialized records, decoded straight off the wire into one
+ * primitive array per field, with no protobuf or boxed value built per record. Integer fields
+ * go into long[], floating point fields into double[], bools into boolean[], and strings, bytes
+ * and enums into int[] codes indexing a dictionary of their distinct values.
+ *
+ * Each column has a presence bitmap with bit i set when record i has a value for the field. A
+ * missing field with a default value counts as present, like in the protobuf itself, and values
+ * equal to the null value of a nullable field count as missing. The array slots of missing
+ * values hold unspecified data. Required fields are not checked.
+ */
+public final class ColumnBatch {
+  public final Def def;
+  private final Column[] columns;
+  // indexed by field index, null for fields that are not extracted
+  private final Column[] byIndex;
+  private int count;
+
+  private ColumnBatch(Def def, Column[] columns) {
+    this.def = def;
+    this.columns = columns;
+    this.byIndex = new Column[def.plans().length];
+    for (Column column : columns) {
+      byIndex[column.field.getIndex()] = column;
+    }
+  }
+
+  /**
+   * Create an empty batch that extracts the given fields, a collection of keys.
+   */
+  public static ColumnBatch create(Def def, Object fields) {
+    List<Column> columns = new ArrayList<Column>();
+    for (ISeq s = RT.seq(fields); s != null; s = s.next()) {
+      Object key = s.first();
+      Def.FieldPlan plan = def.fieldPlan(key);
+      if (plan == null) {
+        throw new IllegalArgumentException(
+          String.format("unknown field %s for message type %s", key, def.getFullName()));
+      }
+      columns.add(column(plan));
+    }
+    return new ColumnBatch(def, columns.toArray(new Column[columns.size()]));
+  }
+
+  private static Column column(Def.FieldPlan plan) {
+    Descriptors.FieldDescriptor field = plan.field;
+    if (field.isRepeated()) {
+      throw new IllegalArgumentException(
+        "can't extract a column for repeated field " + field.getFullName());
+    }
+    switch (field.getJavaType()) {
+      case INT:
+      case LONG:
+        return new LongColumn(plan);
+      case FLOAT:
+      case DOUBLE:
+        return new DoubleColumn(plan);
+      case BOOLEAN:
+        return new BooleanColumn(plan);
+      case STRING:
+      case BYTE_STRING:
+      case ENUM:
+        return new DictionaryColumn(plan);
+      default:
+        throw new IllegalArgumentException(
+          "can't extract a column for message field " + field.getFullName());
+    }
+  }
+
+  public int count() {
+    return count;
+  }
+
+  public Column[] columns() {
+    return columns.clone();
+  }
+
+  /**
+   * The column for the field with the given key, or null if it is not extracted.
+   */
+  public Column column(Object key) {
+    Def.FieldPlan plan = def.fieldPlan(key);
+    return (plan == null) ? null : byIndex[plan.field.getIndex()];
+  }
+
+  public void add(byte[] bytes) throws IOException {
+    add(CodedInputStream.newInstance(bytes));
+  }
+
+  public void add(ByteBuffer buffer) throws IOException {
+    add(PersistentProtocolBufferMap.codedInput(buffer));
+  }
+
+  /**
+   * Add one record made of the rest of in.
+   */
+  public void add(CodedInputStream in) throws IOException {
+    in.setSizeLimit(def.sizeLimit);
+    read(in);
+  }
+
+  /**
+   * Add every record in records, a collection of byte arrays and ByteBuffers.
+   */
+  public void addAll(Object records) throws IOException {
+    for (ISeq s = RT.seq(records); s != null; s = s.next()) {
+      Object record = s.first();
+      if (record instanceof ByteBuffer) {
+        add((ByteBuffer)record);
+      } else {
+        add((byte[])record);
+      }
+    }
+  }
+
+  /**
+   * Add every length-delimited record from input, up to the end of the stream.
+   */
+  public void addDelimited(InputStream input) throws IOException {
+    CodedInputStream in = CodedInputStream.newInstance(input);
+    while (!in.isAtEnd()) {
+      in.resetSizeCounter();
+      in.setSizeLimit(def.sizeLimit);
+      int oldLimit = in.pushLimit(in.readRawVarint32());
+      read(in);
+      in.checkLastTagWas(0);
+      in.popLimit(oldLimit);
+    }
+  }
+
+  private void read(CodedInputStream in) throws IOException {
+    int row = count;
+    for (Column column : columns) {
+      column.ensureCapacity(row + 1);
+    }
+    while (true) {
+      int tag = in.readTag();
+      if (tag == 0) {
+        break;
+      }
+      Def.FieldPlan plan = def.planByNumber(Wire.fieldNumber(tag));
+      Column column = (plan == null) ? null : byIndex[plan.field.getIndex()];
+      if (column == null || Wire.wireType(tag) != column.wireType) {
+        if (!in.skipField(tag)) {
+          break;
+        }
+      } else {
+        column.read(in, row);
+      }
+    }
+    for (Column column : columns) {
+      column.finish(row);
+    }
+    count = row + 1;
+  }
+
+  public abstract static class Column {
+    public final Object key;
+    public final Descriptors.FieldDescriptor field;
+    final Def.FieldPlan plan;
+    final int wireType;
+    private long[] presence = new long[1];
+    // the last row a value was read for
+    private int seen = -1;
+    int count;
+
+    Column(Def.FieldPlan plan) {
+      this.plan = plan;
+      this.key = plan.key;
+      this.field = plan.field;
+      this.wireType = Wire.wireType(field.getType());
+    }
+
+    public int count() {
+      return count;
+    }
+
+    public boolean isPresent(int i) {
+      if (i < 0 || i >= count) {
+        throw new IndexOutOfBoundsException();
+      }
+      return (presence[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * The presence bitmap: bit (i & 63) of word (i >>> 6) is set when row i has a value.
+     */
+    public long[] presence() {
+      return Arrays.copyOf(presence, (count + 63) >>> 6);
+    }
+
+    abstract int capacity();
+
+    abstract void grow(int capacity);
+
+    // Read a value into row, returning false if it is the null value of a nullable field.
+    abstract boolean readValue(CodedInputStream in, int row) throws IOException;
+
+    // Store the field's default value in row, returning false if it is the null value.
+    abstract boolean defaultValue(int row);
+
+    void ensureCapacity(int n) {
+      if (n > capacity()) {
+        int capacity = Math.max(n, capacity() * 2);
+        grow(capacity);
+        presence = Arrays.copyOf(presence, (capacity + 63) >>> 6);
+      }
+    }
+
+    void read(CodedInputStream in, int row) throws IOException {
+      stored(row, readValue(in, row));
+    }
+
+    void stored(int row, boolean present) {
+      seen = row;
+      setPresent(row, present);
+    }
+
+    void finish(int row) {
+      if (seen != row) {
+        setPresent(row, field.hasDefaultValue() && defaultValue(row));
+      }
+      count = row + 1;
+    }
+
+    private void setPresent(int row, boolean present) {
+      if (present) {
+        presence[row >>> 6] |= 1L << row;
+      } else {
+        presence[row >>> 6] &= ~(1L << row);
+      }
+    }
+  }
+
+  public static final class LongColumn extends Column {
+    private final Descriptors.FieldDescriptor.Type type;
+    private final boolean wide;
+    private final long nullValue;
+    private long[] values = new long[16];
+
+    LongColumn(Def.FieldPlan plan) {
+      super(plan);
+      this.type = field.getType();
+      this.wide = field.getJavaType() == Descriptors.FieldDescriptor.JavaType.LONG;
+      this.nullValue = plan.nullable ? ((Number)plan.nullValue).longValue() : 0;
+    }
+
+    /**
+     * The values, one per record.
+     */
+    public long[] values() {
+      if (values.length != count) {
+        values = Arrays.copyOf(values, count);
+      }
+      return values;
+    }
+
+    int capacity() {
+      return values.length;
+    }
+
+    void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    boolean readValue(CodedInputStream in, int row) throws IOException {
+      long value = wide ? Wire.readLong(in, type) : Wire.readInt(in, type);
+      values[row] = value;
+      return !(plan.nullable && value == nullValue);
+    }
+
+    boolean defaultValue(int row) {
+      long value = ((Number)field.getDefaultValue()).longValue();
+      values[row] = value;
+      return !(plan.nullable && value == nullValue);
+    }
+  }
+
+  public static final class DoubleColumn extends Column {
+    private final boolean wide;
+    // compared as bits, the way Double.equals and Float.equals compare the boxed null value
+    private final long nullBits;
+    private double[] values = new double[16];
+
+    DoubleColumn(Def.FieldPlan plan) {
+      super(plan);
+      this.wide = field.getJavaType() == Descriptors.FieldDescriptor.JavaType.DOUBLE;
+      if (!plan.nullable) {
+        this.nullBits = 0;
+      } else if (wide) {
+        this.nullBits = Double.doubleToLongBits((Double)plan.nullValue);
+      } else {
+        this.nullBits = Float.floatToIntBits((Float)plan.nullValue);
+      }
+    }
+
+    /**
+     * The values, one per record. Float fields are widened to double.
+     */
+    public double[] values() {
+      if (values.length != count) {
+        values = Arrays.copyOf(values, count);
+      }
+      return values;
+    }
+
+    int capacity() {
+      return values.length;
+    }
+
+    void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    private boolean store(int row, double d, float f) {
+      values[row] = wide ? d : f;
+      long bits = wide ? Double.doubleToLongBits(d) : Float.floatToIntBits(f);
+      return !(plan.nullable && bits == nullBits);
+    }
+
+    boolean readValue(CodedInputStream in, int row) throws IOException {
+      if (wide) {
+        return store(row, in.readDouble(), 0);
+      }
+      return store(row, 0, in.readFloat());
+    }
+
+    boolean defaultValue(int row) {
+      Number value = (Number)field.getDefaultValue();
+      return store(row, value.doubleValue(), value.floatValue());
+    }
+  }
+
+  public static final class BooleanColumn extends Column {
+    private boolean[] values = new boolean[16];
+
+    BooleanColumn(Def.FieldPlan plan) {
+      super(plan);
+    }
+
+    /**
+     * The values, one per record.
+     */
+    public boolean[] values() {
+      if (values.length != count) {
+        values = Arrays.copyOf(values, count);
+      }
+      return values;
+    }
+
+    int capacity() {
+      return values.length;
+    }
+
+    void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    private boolean store(int row, boolean value) {
+      values[row] = value;
+      return !plan.isNull(value);
+    }
+
+    boolean readValue(CodedInputStream in, int row) throws IOException {
+      return store(row, in.readBool());
+    }
+
+    boolean defaultValue(int row) {
+      return store(row, (Boolean)field.getDefaultValue());
+    }
+  }
+
+  /**
+   * A string, bytes or enum column, held as codes into a dictionary of the distinct values seen.
+   * Strings are only decoded once per distinct value, and enums are dictionary entries in the
+   * form the protobuf would return them in.
+   */
+  public static final class DictionaryColumn extends Column {
+    private final boolean isEnum;
+    private final Map<ByteString, Integer> codes = new HashMap<ByteString, Integer>();
+    // codes of enum values, indexed by EnumValueDescriptor index, -1 until seen
+    private final int[] enumCodes;
+    private final List<Object> dictionary = new ArrayList<Object>();
+    private final ByteString nullBytes;
+    private int[] values = new int[16];
+
+    DictionaryColumn(Def.FieldPlan plan) {
+      super(plan);
+      this.isEnum = field.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM;
+      if (isEnum) {
+        enumCodes = new int[field.getEnumType().getValues().size()];
+        Arrays.fill(enumCodes, -1);
+      } else {
+        enumCodes = null;
+      }
+      if (!plan.nullable || isEnum) {
+        nullBytes = null;
+      } else if (plan.nullValue instanceof ByteString) {
+        nullBytes = (ByteString)plan.nullValue;
+      } else {
+        nullBytes = ByteString.copyFromUtf8((String)plan.nullValue);
+      }
+    }
+
+    /**
+     * The dictionary code of each record's value.
+     */
+    public int[] values() {
+      if (values.length != count) {
+        values = Arrays.copyOf(values, count);
+      }
+      return values;
+    }
+
+    /**
+     * The distinct values, indexed by code.
+     */
+    public List<Object> dictionary() {
+      return Collections.unmodifiableList(dictionary);
+    }
+
+    int capacity() {
+      return values.length;
+    }
+
+    void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    @Override
+    void read(CodedInputStream in, int row) throws IOException {
+      if (!isEnum) {
+        super.read(in, row);
+        return;
+      }
+      Descriptors.EnumValueDescriptor value = field.getEnumType().findValueByNumber(in.readEnum());
+      // unknown enum numbers are dropped, as DynamicMessage does
+      if (value != null) {
+        stored(row, storeEnum(row, value));
+      }
+    }
+
+    boolean readValue(CodedInputStream in, int row) throws IOException {
+      return storeBytes(row, in.readBytes());
+    }
+
+    boolean defaultValue(int row) {
+      Object value = field.getDefaultValue();
+      if (isEnum) {
+        return storeEnum(row, (Descriptors.EnumValueDescriptor)value);
+      } else if (value instanceof ByteString) {
+        return storeBytes(row, (ByteString)value);
+      } else {
+        return storeBytes(row, ByteString.copyFromUtf8((String)value));
+      }
+    }
+
+    private boolean storeBytes(int row, ByteString bytes) {
+      Integer code = codes.get(bytes);
+      if (code == null) {
+        code = dictionary.size();
+        codes.put(bytes, code);
+        dictionary.add((field.getJavaType() == Descriptors.FieldDescriptor.JavaType.STRING)
+                       ? bytes.toStringUtf8() : bytes);
+      }
+      values[row] = code;
+      return !bytes.equals(nullBytes);
+    }
+
+    private boolean storeEnum(int row, Descriptors.EnumValueDescriptor value) {
+      int code = enumCodes[value.getIndex()];
+      if (code < 0) {
+        code = dictionary.size();
+        enumCodes[value.getIndex()] = code;
+        dictionary.add(plan.def.clojureEnumValue(value));
+      }
+      values[row] = code;
+      return !plan.isNull(value.getNumber());
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Writes length-delimited protobufs to a channel with gathering writes. Each protobuf is encoded,
+ * prefix and all, into a buffer of its own, and queued buffers go out together in a single write
+ * call. On a non-blocking channel flush writes what the channel accepts and keeps the rest, so it
+ * can be retried when the channel becomes writable again. A writer is not thread-safe.
+ */
+public class DelimitedChannelWriter {
+  private static final int MAX_GATHER = 64;
+
+  private final GatheringByteChannel channel;
+  private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+  private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+  private long pendingBytes;
+
+  public DelimitedChannelWriter(GatheringByteChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Queue proto to be written by the next flush.
+   */
+  public void add(PersistentProtocolBufferMap proto) throws IOException {
+    int size = proto.getSerializedSize();
+    byte[] bytes = new byte[CodedOutputStream.computeRawVarint32Size(size) + size];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeRawVarint32(size);
+    proto.writeTo(out);
+    out.checkNoSpaceLeft();
+    pending.add(ByteBuffer.wrap(bytes));
+    pendingBytes += bytes.length;
+  }
+
+  /**
+   * Queue proto and flush.
+   */
+  public boolean write(PersistentProtocolBufferMap proto) throws IOException {
+    add(proto);
+    return flush();
+  }
+
+  /**
+   * Write as much of the queued data as the channel accepts. Returns true if everything was
+   * written, or false if the channel filled up first.
+   */
+  public boolean flush() throws IOException {
+    while (!pending.isEmpty()) {
+      int n = 0;
+      for (ByteBuffer buffer : pending) {
+        if (n == batch.length) {
+          break;
+        }
+        batch[n++] = buffer;
+      }
+      long written = channel.write(batch, 0, n);
+      pendingBytes -= written;
+      while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+        pending.poll();
+      }
+      if (written == 0) {
+        break;
+      }
+    }
+    Arrays.fill(batch, null);
+    return pending.isEmpty();
+  }
+
+  public boolean hasPending() {
+    return !pending.isEmpty();
+  }
+
+  /**
+   * The number of queued bytes not yet written.
+   */
+  public long pendingBytes() {
+    return pendingBytes;
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Queue;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+
+/**
+ * Decodes length-delimited protobufs from ByteBuffer chunks pushed to it as they arrive, e.g.
+ * from a non-blocking SocketChannel or an AsynchronousSocketChannel, so no thread has to block
+ * waiting for the rest of a message. A size prefix or body split across chunks is kept until the
+ * next chunk completes it; bodies that arrive whole in a heap buffer are parsed in place.
+ *
+ * Each complete protobuf is passed to the handler. Sizes over the Def's size limit, and
+ * malformed prefixes, throw InvalidProtocolBufferException; the stream is out of sync after
+ * that, so the connection should be dropped. A decoder is not thread-safe.
+ */
+public class DelimitedDecoder {
+  public static interface Handler {
+    void message(PersistentProtocolBufferMap proto);
+  }
+
+  public final Def def;
+  private final Handler handler;
+
+  // size of the message being read, or -1 while reading its prefix
+  private int size = -1;
+  private int prefix;
+  private int shift;
+  // the part of the body read so far, when it is split across chunks
+  private byte[] body;
+  private int filled;
+
+  public DelimitedDecoder(Def def, Handler handler) {
+    this.def = def;
+    this.handler = handler;
+  }
+
+  public DelimitedDecoder(Def def, final Queue<? super PersistentProtocolBufferMap> queue) {
+    this(def, new Handler() {
+      public void message(PersistentProtocolBufferMap proto) {
+        queue.add(proto);
+      }
+    });
+  }
+
+  /**
+   * Whether the decoder is between messages, i.e. it holds no partial prefix or body.
+   */
+  public boolean isIdle() {
+    return size < 0 && shift == 0;
+  }
+
+  /**
+   * Consume all remaining bytes of buffer, passing each protobuf they complete to the handler.
+   * Returns the number of protobufs completed.
+   */
+  public int decode(ByteBuffer buffer) throws IOException {
+    int count = 0;
+    while (true) {
+      if (size < 0 && !readPrefix(buffer)) {
+        return count;
+      }
+      if (body == null && buffer.remaining() >= size) {
+        emit(parse(buffer));
+        buffer.position(buffer.position() + size);
+      } else if (!buffer.hasRemaining()) {
+        return count;
+      } else {
+        if (body == null) {
+          body = new byte[size];
+          filled = 0;
+        }
+        int n = Math.min(size - filled, buffer.remaining());
+        buffer.get(body, filled, n);
+        filled += n;
+        if (filled < size) {
+          return count;
+        }
+        byte[] bytes = body;
+        body = null;
+        emit(def.parseFrom(bytes));
+      }
+      size = -1;
+      count++;
+    }
+  }
+
+  /**
+   * Read whatever channel has available into buffer and decode it. Returns the number of
+   * protobufs completed, or -1 at the end of the stream. With a non-blocking channel, call this
+   * when the channel is readable.
+   */
+  public int read(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    if (channel.read(buffer) < 0) {
+      if (!isIdle()) {
+        throw new EOFException("stream ended inside a length-delimited message");
+      }
+      return -1;
+    }
+    buffer.flip();
+    return decode(buffer);
+  }
+
+  private boolean readPrefix(ByteBuffer buffer) throws InvalidProtocolBufferException {
+    while (buffer.hasRemaining()) {
+      byte b = buffer.get();
+      prefix |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        int n = prefix;
+        prefix = 0;
+        shift = 0;
+        if (n < 0 || n > def.sizeLimit) {
+          throw new InvalidProtocolBufferException(
+            String.format("message of %d bytes exceeds the size limit of %d bytes for %s",
+                          n & 0xffffffffL, def.sizeLimit, def.getFullName()));
+        }
+        size = n;
+        return true;
+      }
+      shift += 7;
+      if (shift >= 35) {
+        throw new InvalidProtocolBufferException("malformed length prefix");
+      }
+    }
+    return false;
+  }
+
+  // parse the next size bytes of buffer without moving its position
+  private Message parse(ByteBuffer buffer) throws IOException {
+    if (buffer.hasArray()) {
+      return def.parseFrom(CodedInputStream.newInstance(
+                             buffer.array(), buffer.arrayOffset() + buffer.position(), size));
+    }
+    byte[] bytes = new byte[size];
+    buffer.duplicate().get(bytes);
+    return def.parseFrom(bytes);
+  }
+
+  private void emit(Message message) {
+    handler.message(new PersistentProtocolBufferMap(null, def, message));
+  }
+}
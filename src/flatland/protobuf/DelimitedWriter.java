@@ -0,0 +1,134 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Writes length-delimited protobufs to an OutputStream through a single CodedOutputStream over
+ * a pooled buffer, instead of setting up a new stream for every message. The buffer is drained
+ * to the OutputStream whenever it fills up, and the OutputStream is flushed every flushBytes
+ * bytes if flushBytes is positive.
+ */
+public class DelimitedWriter implements Closeable, Flushable {
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 16;
+  private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+
+  private final OutputStream out;
+  private final long flushBytes;
+  private byte[] buffer;
+  private CodedOutputStream coded;
+  private long unflushed;
+
+  public DelimitedWriter(OutputStream out) {
+    this(out, DEFAULT_BUFFER_SIZE, 0);
+  }
+
+  public DelimitedWriter(OutputStream out, int bufferSize, long flushBytes) {
+    this.out = out;
+    this.flushBytes = flushBytes;
+    this.buffer = acquire(bufferSize);
+    this.coded = CodedOutputStream.newInstance(buffer);
+  }
+
+  private static byte[] acquire(int size) {
+    if (size == DEFAULT_BUFFER_SIZE) {
+      byte[] buffer = pool.poll();
+      if (buffer != null) {
+        return buffer;
+      }
+    }
+    return new byte[size];
+  }
+
+  private static void release(byte[] buffer) {
+    if (buffer.length == DEFAULT_BUFFER_SIZE && pool.size() < MAX_POOLED_BUFFERS) {
+      pool.offer(buffer);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (buffer == null) {
+      throw new IOException("DelimitedWriter is closed");
+    }
+  }
+
+  public void write(PersistentProtocolBufferMap proto) throws IOException {
+    ensureOpen();
+    int size = proto.getSerializedSize();
+    int total = CodedOutputStream.computeRawVarint32Size(size) + size;
+    if (total > coded.spaceLeft()) {
+      drain();
+      if (total > buffer.length) {
+        // too big to ever fit in the buffer, so write it straight through
+        proto.writeDelimitedTo(out);
+        written(total);
+        return;
+      }
+    }
+    coded.writeRawVarint32(size);
+    proto.writeTo(coded);
+  }
+
+  private void drain() throws IOException {
+    int length = buffer.length - coded.spaceLeft();
+    if (length > 0) {
+      out.write(buffer, 0, length);
+      coded = CodedOutputStream.newInstance(buffer);
+      written(length);
+    }
+  }
+
+  private void written(long length) throws IOException {
+    unflushed += length;
+    if (flushBytes > 0 && unflushed >= flushBytes) {
+      out.flush();
+      unflushed = 0;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    drain();
+    out.flush();
+    unflushed = 0;
+  }
+
+  /**
+   * Flush everything written so far and return the buffer to the pool, leaving the underlying
+   * OutputStream open.
+   */
+  public void finish() throws IOException {
+    if (buffer != null) {
+      flush();
+      release(buffer);
+      buffer = null;
+      coded = null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+}
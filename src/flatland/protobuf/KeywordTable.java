@@ -0,0 +1,110 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import clojure.lang.Keyword;
+
+/**
+ * An immutable open-addressing table keyed by Keyword identity. Keywords are interned, so
+ * looking one up costs an identity hash and a few reference comparisons, with no equals calls.
+ * Adding an entry returns a new table, so readers never need to lock.
+ */
+final class KeywordTable {
+  static final KeywordTable EMPTY = new KeywordTable(new Keyword[8], new Object[8], 0);
+
+  private final Keyword[] keys;
+  private final Object[] vals;
+  private final int size;
+
+  private KeywordTable(Keyword[] keys, Object[] vals, int size) {
+    this.keys = keys;
+    this.vals = vals;
+    this.size = size;
+  }
+
+  /**
+   * Return a table that maps the key of each plan that has a Keyword key to the plan, built in
+   * one pass rather than by adding the plans one at a time.
+   */
+  static KeywordTable of(PersistentProtocolBufferMap.Def.FieldPlan[] plans) {
+    int capacity = EMPTY.keys.length;
+    while (plans.length * 2 > capacity) {
+      capacity *= 2;
+    }
+    Keyword[] keys = new Keyword[capacity];
+    Object[] vals = new Object[capacity];
+    int size = 0;
+    for (PersistentProtocolBufferMap.Def.FieldPlan plan : plans) {
+      if (plan.key instanceof Keyword && put(keys, vals, (Keyword)plan.key, plan)) {
+        size++;
+      }
+    }
+    return new KeywordTable(keys, vals, size);
+  }
+
+  int size() {
+    return size;
+  }
+
+  private static int hash(Keyword key) {
+    int h = System.identityHashCode(key);
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Return the value for key, or null if the table has no entry for it.
+   */
+  Object get(Keyword key) {
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      Keyword k = keys[i];
+      if (k == key) {
+        return vals[i];
+      } else if (k == null) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Return a table that also maps key to val, which must not be null.
+   */
+  KeywordTable with(Keyword key, Object val) {
+    int capacity = keys.length;
+    while ((size + 1) * 2 > capacity) {
+      capacity *= 2;
+    }
+    Keyword[] newKeys = new Keyword[capacity];
+    Object[] newVals = new Object[capacity];
+    int newSize = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null && keys[i] != key) {
+        put(newKeys, newVals, keys[i], vals[i]);
+        newSize++;
+      }
+    }
+    put(newKeys, newVals, key, val);
+    return new KeywordTable(newKeys, newVals, newSize + 1);
+  }
+
+  // store val under key, returning true if key was not in the table yet
+  private static boolean put(Keyword[] keys, Object[] vals, Keyword key, Object val) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != null && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    boolean added = (keys[i] == null);
+    keys[i] = key;
+    vals[i] = val;
+    return added;
+  }
+}
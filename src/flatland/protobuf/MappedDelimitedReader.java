@@ -0,0 +1,183 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Iterates over a file of length-delimited protobufs through a sliding memory-mapped window, so
+ * files larger than a single mapping (2GiB) can be read without a read call per record. Each
+ * record is copied out of the mapping with one bulk get and parsed from that array, since
+ * CodedInputStream can only read a buffer through a stream, which copies too, in small chunks.
+ *
+ * Nothing parsed refers to the mapping, so a window is unmapped as soon as the next one replaces
+ * it, and the last one on close, rather than whenever the garbage collector gets to them; only
+ * one window is mapped at a time.
+ */
+public class MappedDelimitedReader implements Iterator<PersistentProtocolBufferMap>, Closeable {
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+  private static final int MAX_VARINT_SIZE = 5;
+
+  private final PersistentProtocolBufferMap.Def def;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long length;
+  private final int windowSize;
+
+  private MappedByteBuffer window;
+  private long windowStart;
+  private long position;
+
+  public MappedDelimitedReader(PersistentProtocolBufferMap.Def def, File file) throws IOException {
+    this(def, file, DEFAULT_WINDOW_SIZE);
+  }
+
+  public MappedDelimitedReader(PersistentProtocolBufferMap.Def def, File file, int windowSize)
+          throws IOException {
+    this.def = def;
+    this.file = new RandomAccessFile(file, "r");
+    this.channel = this.file.getChannel();
+    this.length = channel.size();
+    this.windowSize = windowSize;
+  }
+
+  // make sure bytes [position, position + size) are mapped, or as many as the file has
+  private void ensureMapped(long size) throws IOException {
+    long end = Math.min(length, position + size);
+    if (window == null || position < windowStart || end > windowStart + window.limit()) {
+      long mapSize = Math.min(length - position, Math.max(size, windowSize));
+      MappedByteBuffer old = window;
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position, mapSize);
+      windowStart = position;
+      if (old != null) {
+        unmap(old);
+      }
+    }
+    window.position((int)(position - windowStart));
+  }
+
+  @Override
+  public boolean hasNext() {
+    return position < length;
+  }
+
+  @Override
+  public PersistentProtocolBufferMap next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    try {
+      ensureMapped(MAX_VARINT_SIZE);
+      int prefix = window.position();
+      int size = readRawVarint32(window);
+      if (size < 0 || size > def.sizeLimit) {
+        throw new InvalidProtocolBufferException(
+          String.format("message of %d bytes exceeds the size limit of %d", size, def.sizeLimit));
+      }
+      position += window.position() - prefix;
+      if (position + size > length) {
+        throw new InvalidProtocolBufferException("truncated message at end of file");
+      }
+
+      ensureMapped(size);
+      byte[] record = new byte[size];
+      window.get(record);
+      position += size;
+      return PersistentProtocolBufferMap.parseFrom(def, CodedInputStream.newInstance(record));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (window != null) {
+      unmap(window);
+      window = null;
+    }
+    file.close();
+  }
+
+  // Unsafe.invokeCleaner on Java 9 and later, where the cleaner of a buffer is not accessible
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> c = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = c.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+    } catch (Exception e) {
+      // before Java 9; buffers are cleaned through their own cleaner
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  /**
+   * Release buffer's mapping now instead of when buffer is garbage collected. If the JVM offers
+   * no way to do that, it is left to the garbage collector. buffer must not be used afterwards.
+   */
+  static void unmap(MappedByteBuffer buffer) {
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else {
+        Method getCleaner = buffer.getClass().getMethod("cleaner");
+        getCleaner.setAccessible(true);
+        Object cleaner = getCleaner.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (Exception e) {
+      // not supported by this JVM; the mapping goes when the buffer is collected
+    }
+  }
+
+  static int readRawVarint32(ByteBuffer buffer) throws InvalidProtocolBufferException {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        throw new InvalidProtocolBufferException("truncated length prefix");
+      }
+      byte b = buffer.get();
+      result |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+    throw new InvalidProtocolBufferException("malformed length prefix");
+  }
+}
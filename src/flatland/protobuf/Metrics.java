@@ -0,0 +1,275 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+
+import com.google.protobuf.Descriptors;
+
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+
+/**
+ * Counters for the hot paths of one message type: parsing, serializing, converting field values
+ * to Clojure, and keys that fell back to the extension map. Recording is off by default, and
+ * while it is off each instrumented call only pays for one volatile read. Turn it on with
+ * setEnabled, or with the system property flatland.protobuf.metrics=true.
+ *
+ * Every recorded event is also passed to the listener, if there is one. When the JFR listener
+ * (built from the jfr source path) is on the classpath and the JVM supports it, it is installed
+ * by default and turns events into JFR events.
+ */
+public final class Metrics {
+  public static enum Op {
+    PARSE, PARSE_DELIMITED, SERIALIZE, CONVERT;
+
+    final Keyword key = Keyword.intern(name().toLowerCase().replace('_', '-'));
+  }
+
+  /**
+   * Receives recorded events as they happen. begin is called when the measured work starts, and
+   * whatever it returns is passed to end when the work is done; field is only given for CONVERT,
+   * and bytes is -1 for it.
+   */
+  public static interface Listener {
+    Object begin(Def def, Op op);
+
+    void end(Object token, Def def, Op op, Descriptors.FieldDescriptor field, long nanos,
+             long bytes);
+
+    void extFallback(Def def, Object key);
+  }
+
+  static volatile boolean enabled = Boolean.getBoolean("flatland.protobuf.metrics");
+  private static volatile Listener listener = defaultListener();
+
+  private static Listener defaultListener() {
+    try {
+      return (Listener)Class.forName("flatland.protobuf.jfr.JfrListener")
+        .getDeclaredConstructor().newInstance();
+    } catch (Throwable e) {
+      // not built with the jfr source path, or no JFR in this JVM
+      return null;
+    }
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  public static void setEnabled(boolean on) {
+    enabled = on;
+  }
+
+  public static Listener getListener() {
+    return listener;
+  }
+
+  /**
+   * Replace the listener that recorded events are passed to; null removes it.
+   */
+  public static void setListener(Listener l) {
+    listener = l;
+  }
+
+  private final Def def;
+  // allocated on first record, so that types that are never measured cost nothing
+  private volatile Counters counters;
+
+  Metrics(Def def) {
+    this.def = def;
+  }
+
+  /**
+   * Start timing a call to op, or return null when recording is off.
+   */
+  Timer start(Op op) {
+    return enabled ? new Timer(this, op) : null;
+  }
+
+  /**
+   * One instrumented call in progress.
+   */
+  static final class Timer {
+    private final Metrics metrics;
+    private final Op op;
+    private final Object token;
+    private final long start;
+
+    Timer(Metrics metrics, Op op) {
+      this.metrics = metrics;
+      this.op = op;
+      Listener l = listener;
+      this.token = (l == null) ? null : l.begin(metrics.def, op);
+      this.start = System.nanoTime();
+    }
+
+    /**
+     * Record the end of the call, which handled bytes bytes.
+     */
+    void stop(long bytes) {
+      metrics.record(this, null, bytes);
+    }
+
+    /**
+     * Record the end of a conversion of a value of plan's field.
+     */
+    void converted(Def.FieldPlan plan) {
+      metrics.record(this, plan, -1);
+    }
+  }
+
+  private static final class Counters {
+    final Histogram[] latency = new Histogram[Op.values().length];
+    final Histogram[] sizes = new Histogram[Op.values().length];
+    final AtomicLongArray conversions;
+    final AtomicLong extFallbacks = new AtomicLong();
+
+    Counters(int fields) {
+      for (int i = 0; i < latency.length; i++) {
+        latency[i] = new Histogram();
+        sizes[i] = new Histogram();
+      }
+      conversions = new AtomicLongArray(fields);
+    }
+  }
+
+  private Counters counters() {
+    Counters c = counters;
+    if (c == null) {
+      synchronized (this) {
+        c = counters;
+        if (c == null) {
+          c = new Counters(def.plans().length);
+          counters = c;
+        }
+      }
+    }
+    return c;
+  }
+
+  private void record(Timer timer, Def.FieldPlan plan, long bytes) {
+    long nanos = System.nanoTime() - timer.start;
+    Op op = timer.op;
+    Counters c = counters();
+    c.latency[op.ordinal()].add(nanos);
+    if (plan == null) {
+      c.sizes[op.ordinal()].add(bytes);
+    } else if (plan.field.getContainingType() == def.type) {
+      c.conversions.incrementAndGet(plan.field.getIndex());
+    }
+    Listener l = listener;
+    if (l != null && timer.token != null) {
+      l.end(timer.token, def, op, (plan == null) ? null : plan.field, nanos, bytes);
+    }
+  }
+
+  void extFallback(Object key) {
+    counters().extFallbacks.incrementAndGet();
+    Listener l = listener;
+    if (l != null) {
+      l.extFallback(def, key);
+    }
+  }
+
+  public synchronized void reset() {
+    counters = null;
+  }
+
+  private static final Keyword COUNT = Keyword.intern("count");
+  private static final Keyword NANOS = Keyword.intern("nanos");
+  private static final Keyword MAX_NANOS = Keyword.intern("max-nanos");
+  private static final Keyword BYTES = Keyword.intern("bytes");
+  private static final Keyword LATENCY = Keyword.intern("latency");
+  private static final Keyword SIZES = Keyword.intern("sizes");
+  private static final Keyword CONVERSIONS = Keyword.intern("conversions");
+  private static final Keyword EXT_FALLBACKS = Keyword.intern("ext-fallbacks");
+
+  /**
+   * The counters so far, as a map from :parse, :parse-delimited, :serialize and :convert to
+   * {:count :nanos :max-nanos :bytes :latency :sizes}, plus :conversions (field key to the number
+   * of values converted) and :ext-fallbacks. :latency and :sizes are log2 histograms: element i
+   * counts the values v with 2^(i-1) <= v < 2^i, and element 0 counts zeros.
+   */
+  public IPersistentMap snapshot() {
+    Counters c = counters;
+    if (c == null) {
+      c = new Counters(def.plans().length);
+    }
+    List<Object> kvs = new ArrayList<Object>();
+    for (Op op : Op.values()) {
+      Histogram latency = c.latency[op.ordinal()];
+      Histogram sizes = c.sizes[op.ordinal()];
+      kvs.add(op.key);
+      kvs.add(new PersistentArrayMap(new Object[] {
+            COUNT, latency.count.get(),
+            NANOS, latency.sum.get(),
+            MAX_NANOS, latency.max.get(),
+            BYTES, sizes.sum.get(),
+            LATENCY, latency.buckets(),
+            SIZES, sizes.buckets()}));
+    }
+    List<Object> fields = new ArrayList<Object>();
+    Def.FieldPlan[] plans = def.plans();
+    for (int i = 0; i < plans.length; i++) {
+      long n = c.conversions.get(i);
+      if (n != 0) {
+        fields.add(plans[i].key);
+        fields.add(n);
+      }
+    }
+    kvs.add(CONVERSIONS);
+    kvs.add(PersistentHashMap.create(RT.seq(fields)));
+    kvs.add(EXT_FALLBACKS);
+    kvs.add(c.extFallbacks.get());
+    return PersistentHashMap.create(RT.seq(kvs));
+  }
+
+  static final class Histogram {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong sum = new AtomicLong();
+    final AtomicLong max = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    void add(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value) & 63);
+      long m;
+      while (value > (m = max.get()) && !max.compareAndSet(m, value)) {}
+    }
+
+    // the buckets up to the last non-empty one
+    PersistentVector buckets() {
+      int n = 64;
+      while (n > 0 && buckets.get(n - 1) == 0) {
+        n--;
+      }
+      List<Object> counts = new ArrayList<Object>(n);
+      for (int i = 0; i < n; i++) {
+        counts.add(buckets.get(i));
+      }
+      return PersistentVector.create(counts);
+    }
+  }
+}
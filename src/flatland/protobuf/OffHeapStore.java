@@ -0,0 +1,265 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+
+/**
+ * A store of serialized protobufs of one type, keyed by long, that keeps the records outside the
+ * heap. Records are appended to direct ByteBuffer slabs and found through an open-addressing
+ * table of primitive arrays, so the heap only holds a few longs per record. get copies the
+ * record back onto the heap as a lazy protobuf, which is only parsed as far as it is read.
+ *
+ * Replacing or removing a record leaves its old bytes behind in the slabs; compact copies the
+ * live records into fresh slabs and releases the old ones.
+ */
+public class OffHeapStore {
+  public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+  private static final long EMPTY = -1L;
+
+  public final Def def;
+  private final int slabSize;
+
+  private List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+  private ByteBuffer tail;
+
+  // Linear-probing table. An address is (slab index << 32 | offset) and EMPTY marks a free slot.
+  private long[] keys;
+  private long[] addresses;
+  private int[] lengths;
+  private int size;
+
+  private long liveBytes;
+  private long garbageBytes;
+
+  public OffHeapStore(Def def) {
+    this(def, DEFAULT_SLAB_SIZE, 1024);
+  }
+
+  public OffHeapStore(Def def, int slabSize, int capacity) {
+    if (slabSize <= 0) {
+      throw new IllegalArgumentException("slab size must be positive: " + slabSize);
+    }
+    this.def = def;
+    this.slabSize = slabSize;
+    allocateTable(tableSize(capacity));
+  }
+
+  private static int tableSize(int capacity) {
+    int n = 16;
+    while (n < capacity * 2) {
+      n <<= 1;
+    }
+    return n;
+  }
+
+  private void allocateTable(int n) {
+    keys = new long[n];
+    addresses = new long[n];
+    lengths = new int[n];
+    Arrays.fill(addresses, EMPTY);
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  private int slot(long key) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (addresses[i] != EMPTY && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Bytes held by live records.
+   */
+  public synchronized long liveBytes() {
+    return liveBytes;
+  }
+
+  /**
+   * Bytes left behind in the slabs by replaced and removed records, reclaimed by compact.
+   */
+  public synchronized long garbageBytes() {
+    return garbageBytes;
+  }
+
+  public synchronized boolean containsKey(long key) {
+    return addresses[slot(key)] != EMPTY;
+  }
+
+  /**
+   * Return a copy of the serialized record for key, or null if there is none.
+   */
+  public synchronized byte[] getBytes(long key) {
+    int i = slot(key);
+    long address = addresses[i];
+    if (address == EMPTY) {
+      return null;
+    }
+    byte[] bytes = new byte[lengths[i]];
+    ByteBuffer slab = slabs.get((int)(address >>> 32)).duplicate();
+    slab.position((int)address);
+    slab.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Return the record for key as a lazy protobuf, or null if there is none.
+   */
+  public PersistentProtocolBufferMap get(long key) {
+    byte[] bytes = getBytes(key);
+    return (bytes == null) ? null : PersistentProtocolBufferMap.createLazy(def, bytes);
+  }
+
+  public void put(long key, PersistentProtocolBufferMap proto) {
+    putBytes(key, proto.toByteArray());
+  }
+
+  /**
+   * Append bytes as the record for key, replacing any record it already has.
+   */
+  public synchronized void putBytes(long key, byte[] bytes) {
+    long address = write(bytes);
+    int i = slot(key);
+    if (addresses[i] == EMPTY) {
+      keys[i] = key;
+      size++;
+    } else {
+      liveBytes -= lengths[i];
+      garbageBytes += lengths[i];
+    }
+    addresses[i] = address;
+    lengths[i] = bytes.length;
+    liveBytes += bytes.length;
+    if (size * 4 > keys.length * 3) {
+      rehash(keys.length * 2);
+    }
+  }
+
+  public synchronized boolean remove(long key) {
+    int i = slot(key);
+    if (addresses[i] == EMPTY) {
+      return false;
+    }
+    liveBytes -= lengths[i];
+    garbageBytes += lengths[i];
+    size--;
+    // Shift later entries of the probe run back, so lookups never stop at a hole.
+    int mask = keys.length - 1;
+    int j = i;
+    while (true) {
+      addresses[i] = EMPTY;
+      while (true) {
+        j = (j + 1) & mask;
+        if (addresses[j] == EMPTY) {
+          return true;
+        }
+        int home = hash(keys[j]) & mask;
+        if ((i <= j) ? (i < home && home <= j) : (i < home || home <= j)) {
+          continue;
+        }
+        break;
+      }
+      keys[i] = keys[j];
+      addresses[i] = addresses[j];
+      lengths[i] = lengths[j];
+      i = j;
+    }
+  }
+
+  private long write(byte[] bytes) {
+    if (bytes.length > slabSize) {
+      throw new IllegalArgumentException(
+        String.format("record of %d bytes does not fit in a slab of %d bytes", bytes.length, slabSize));
+    }
+    if (tail == null || tail.remaining() < bytes.length) {
+      tail = ByteBuffer.allocateDirect(slabSize);
+      slabs.add(tail);
+    }
+    long address = ((long)(slabs.size() - 1) << 32) | tail.position();
+    tail.put(bytes);
+    return address;
+  }
+
+  private void rehash(int n) {
+    long[] oldKeys = keys;
+    long[] oldAddresses = addresses;
+    int[] oldLengths = lengths;
+    allocateTable(n);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldAddresses[i] != EMPTY) {
+        int j = slot(oldKeys[i]);
+        keys[j] = oldKeys[i];
+        addresses[j] = oldAddresses[i];
+        lengths[j] = oldLengths[i];
+      }
+    }
+  }
+
+  /**
+   * Copy the live records into fresh slabs, releasing the space of replaced and removed records.
+   */
+  public synchronized void compact() {
+    if (garbageBytes == 0) {
+      return;
+    }
+    List<ByteBuffer> oldSlabs = slabs;
+    slabs = new ArrayList<ByteBuffer>();
+    tail = null;
+    byte[] buffer = new byte[0];
+    for (int i = 0; i < keys.length; i++) {
+      long address = addresses[i];
+      if (address == EMPTY) {
+        continue;
+      }
+      int length = lengths[i];
+      if (buffer.length < length) {
+        buffer = new byte[length];
+      }
+      ByteBuffer slab = oldSlabs.get((int)(address >>> 32)).duplicate();
+      slab.position((int)address);
+      slab.get(buffer, 0, length);
+      if (tail == null || tail.remaining() < length) {
+        tail = ByteBuffer.allocateDirect(slabSize);
+        slabs.add(tail);
+      }
+      addresses[i] = ((long)(slabs.size() - 1) << 32) | tail.position();
+      tail.put(buffer, 0, length);
+    }
+    garbageBytes = 0;
+  }
+
+  /**
+   * Drop every record and release the slabs.
+   */
+  public synchronized void clear() {
+    slabs = new ArrayList<ByteBuffer>();
+    tail = null;
+    Arrays.fill(addresses, EMPTY);
+    size = 0;
+    liveBytes = 0;
+    garbageBytes = 0;
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Reads length-delimited protobufs, decoding them in parallel. The calling thread only scans
+ * the length prefixes and cuts the input into record slices; parsing happens on an executor, a
+ * shared ForkJoinPool by default. At most maxInFlight records are buffered at a time. Records
+ * come back in input order unless ordered is false, in which case they come back as soon as
+ * they are parsed.
+ */
+public class ParallelDelimitedReader implements Iterator<PersistentProtocolBufferMap>, Closeable {
+  private static final ExecutorService defaultPool = new ForkJoinPool();
+
+  private final PersistentProtocolBufferMap.Def def;
+  private final InputStream input;
+  private final CodedInputStream coded;
+  private final int maxInFlight;
+
+  // ordered results are queued in input order; unordered results come from the completion service
+  private final ArrayDeque<Future<PersistentProtocolBufferMap>> queue;
+  private final ExecutorService executor;
+  private final CompletionService<PersistentProtocolBufferMap> completion;
+  private int inFlight;
+  private boolean eof;
+
+  public ParallelDelimitedReader(PersistentProtocolBufferMap.Def def, InputStream input) {
+    this(def, input, null, 2 * Runtime.getRuntime().availableProcessors(), true);
+  }
+
+  public ParallelDelimitedReader(PersistentProtocolBufferMap.Def def, InputStream input,
+                                 ExecutorService executor, int maxInFlight, boolean ordered) {
+    this.def = def;
+    this.input = input;
+    this.coded = CodedInputStream.newInstance(input);
+    this.coded.setSizeLimit(Integer.MAX_VALUE);
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.executor = (executor == null) ? defaultPool : executor;
+    if (ordered) {
+      this.queue = new ArrayDeque<Future<PersistentProtocolBufferMap>>(this.maxInFlight);
+      this.completion = null;
+    } else {
+      this.queue = null;
+      this.completion = new ExecutorCompletionService<PersistentProtocolBufferMap>(this.executor);
+    }
+  }
+
+  private byte[] readSlice() throws IOException {
+    if (coded.isAtEnd()) {
+      return null;
+    }
+    coded.resetSizeCounter();
+    int size = coded.readRawVarint32();
+    if (size < 0 || size > def.sizeLimit) {
+      throw new InvalidProtocolBufferException(
+        String.format("message of %d bytes exceeds the size limit of %d", size, def.sizeLimit));
+    }
+    return coded.readRawBytes(size);
+  }
+
+  private void fill() {
+    try {
+      while (!eof && inFlight < maxInFlight) {
+        final byte[] slice = readSlice();
+        if (slice == null) {
+          eof = true;
+        } else {
+          Callable<PersistentProtocolBufferMap> parse = new Callable<PersistentProtocolBufferMap>() {
+            public PersistentProtocolBufferMap call() throws IOException {
+              return PersistentProtocolBufferMap.create(def, slice);
+            }
+          };
+          if (queue != null) {
+            queue.add(executor.submit(parse));
+          } else {
+            completion.submit(parse);
+          }
+          inFlight++;
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    fill();
+    return inFlight > 0;
+  }
+
+  @Override
+  public PersistentProtocolBufferMap next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    try {
+      Future<PersistentProtocolBufferMap> result = (queue != null) ? queue.poll() : completion.take();
+      inFlight--;
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (queue != null) {
+      for (Future<PersistentProtocolBufferMap> result : queue) {
+        result.cancel(false);
+      }
+      queue.clear();
+    }
+    eof = true;
+    inFlight = 0;
+    input.close();
+  }
+}
@@ -14,9 +14,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -25,6 +33,8 @@ import ordered_map.core.OrderedMap;
 import ordered_set.core.OrderedSet;
 import clojure.lang.APersistentMap;
 import clojure.lang.ASeq;
+import clojure.lang.IDeref;
+import clojure.lang.IEditableCollection;
 import clojure.lang.IFn;
 import clojure.lang.IMapEntry;
 import clojure.lang.IObj;
@@ -32,10 +42,12 @@ import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentVector;
 import clojure.lang.ISeq;
+import clojure.lang.ITransientCollection;
 import clojure.lang.ITransientMap;
 import clojure.lang.ITransientSet;
 import clojure.lang.Keyword;
 import clojure.lang.MapEntry;
+import clojure.lang.Named;
 import clojure.lang.Numbers;
 import clojure.lang.Obj;
 import clojure.lang.PersistentArrayMap;
@@ -46,6 +58,7 @@ import clojure.lang.Sequential;
 import clojure.lang.Symbol;
 import clojure.lang.Var;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.DescriptorProtos;
@@ -54,9 +67,12 @@ import com.google.protobuf.Descriptors;
 import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.UninitializedMessageException;
 
 
-public class PersistentProtocolBufferMap extends APersistentMap implements IObj {
+public class PersistentProtocolBufferMap extends APersistentMap implements IObj, IEditableCollection {
   public static class Def {
     public static interface NamingStrategy {
       /**
@@ -70,10 +86,15 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
       Object clojureName(String protoName);
     }
 
-    // we want this to work for anything Named, so use clojure.core/name
+    // we want this to work for anything Named, so fall back on clojure.core/name
     public static final Var NAME_VAR = Var.intern(RT.CLOJURE_NS, Symbol.intern("name"));
 
     public static final String nameStr(Object named) {
+      if (named instanceof String) {
+        return (String)named;
+      } else if (named instanceof Named) {
+        return ((Named)named).getName();
+      }
       try {
         return (String)((IFn)NAME_VAR.deref()).invoke(named);
       } catch (Exception e) {
@@ -81,6 +102,29 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
       }
     }
 
+    // Lower-case ASCII letters without allocating when there are none; anything else goes
+    // through String.toLowerCase.
+    static String lowerCase(String name) {
+      for (int i = 0; i < name.length(); i++) {
+        char c = name.charAt(i);
+        if (c > 127) {
+          return name.toLowerCase();
+        } else if (c >= 'A' && c <= 'Z') {
+          char[] chars = name.toCharArray();
+          for (int j = i; j < chars.length; j++) {
+            c = chars[j];
+            if (c > 127) {
+              return name.toLowerCase();
+            } else if (c >= 'A' && c <= 'Z') {
+              chars[j] = (char)(c + ('a' - 'A'));
+            }
+          }
+          return new String(chars);
+        }
+      }
+      return name;
+    }
+
     public static final NamingStrategy protobufNames = new NamingStrategy() {
       @Override
       public String protoName(Object name) {
@@ -89,7 +133,7 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
 
       @Override
       public Object clojureName(String name) {
-        return Keyword.intern(name.toLowerCase());
+        return Keyword.intern(lowerCase(name));
       }
 
       @Override
@@ -100,12 +144,12 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
     public static final NamingStrategy convertUnderscores = new NamingStrategy() {
       @Override
       public String protoName(Object name) {
-        return nameStr(name).replaceAll("-", "_");
+        return nameStr(name).replace('-', '_');
       }
 
       @Override
       public Object clojureName(String name) {
-        return Keyword.intern(name.replaceAll("_", "-").toLowerCase());
+        return Keyword.intern(lowerCase(name.replace('_', '-')));
       }
 
       @Override
@@ -113,30 +157,401 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
         return "[convert underscores]";
       }
     };
+    /**
+     * For camelCase field names: fooBarId is :foo-bar-id.
+     */
+    public static final NamingStrategy camelCase = new NamingStrategy() {
+      @Override
+      public String protoName(Object name) {
+        String str = nameStr(name);
+        StringBuilder proto = new StringBuilder(str.length());
+        boolean upper = false;
+        for (int i = 0; i < str.length(); i++) {
+          char c = str.charAt(i);
+          if (c == '-') {
+            upper = true;
+          } else {
+            proto.append(upper ? Character.toUpperCase(c) : c);
+            upper = false;
+          }
+        }
+        return proto.toString();
+      }
+
+      @Override
+      public Object clojureName(String name) {
+        StringBuilder clojure = new StringBuilder(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+          char c = name.charAt(i);
+          if (Character.isUpperCase(c)) {
+            if (i > 0 && name.charAt(i - 1) != '_') {
+              clojure.append('-');
+            }
+            clojure.append(Character.toLowerCase(c));
+          } else {
+            clojure.append(c == '_' ? '-' : c);
+          }
+        }
+        return Keyword.intern(clojure.toString());
+      }
+
+      @Override
+      public String toString() {
+        return "[camel case]";
+      }
+    };
+    /**
+     * Field names used as keywords exactly as they appear in the proto file.
+     */
+    public static final NamingStrategy identityNames = new NamingStrategy() {
+      @Override
+      public String protoName(Object name) {
+        return nameStr(name);
+      }
+
+      @Override
+      public Object clojureName(String name) {
+        return Keyword.intern(name);
+      }
+
+      @Override
+      public String toString() {
+        return "[identity names]";
+      }
+    };
+
+    private static final ConcurrentHashMap<Object, NamingStrategy> namingStrategies =
+      new ConcurrentHashMap<Object, NamingStrategy>();
+
+    /**
+     * Make strategy available by name, e.g. as the :naming-strategy option of protodef. The
+     * strategy is only consulted once per field name and once per distinct key of each Def;
+     * the results are cached, so it need not be fast.
+     */
+    public static void registerNamingStrategy(Object name, NamingStrategy strategy) {
+      namingStrategies.put(name, strategy);
+    }
+
+    /**
+     * Return the naming strategy registered under name, or name itself if it is a strategy.
+     */
+    public static NamingStrategy namingStrategy(Object name) {
+      if (name instanceof NamingStrategy) {
+        return (NamingStrategy)name;
+      }
+      NamingStrategy strategy = namingStrategies.get(name);
+      if (strategy == null) {
+        throw new IllegalArgumentException("unknown naming strategy: " + name);
+      }
+      return strategy;
+    }
+
+    static {
+      registerNamingStrategy(Keyword.intern("underscores"), convertUnderscores);
+      registerNamingStrategy(Keyword.intern("protobuf"), protobufNames);
+      registerNamingStrategy(Keyword.intern("camel-case"), camelCase);
+      registerNamingStrategy(Keyword.intern("identity"), identityNames);
+    }
+
+    public static enum Kind {
+      PLAIN, MAP_BY, COUNTER, SUCCESSION, MAP, SET
+    }
+
+    /**
+     * Everything needed to convert a single field between protobuf and Clojure values, resolved
+     * once from the field's options so that reads and writes don't have to query extensions.
+     */
+    public static final class FieldPlan {
+      public final Def def;
+      public final Descriptors.FieldDescriptor field;
+      public final Object key;
+      public final Kind kind;
+      public final boolean map;
+      public final boolean set;
+      public final boolean nullable;
+      public final Object nullValue;
+      public final Descriptors.EnumValueDescriptor nullEnumValue;
+
+      // map_by fields
+      public final Object mapBy;
+      public final String mapByName;
+      public final Object mapExists;
+      public final Object mapDeleted;
+
+      // sub-fields of map and set entries, converted with the naming strategy of this def
+      public final FieldPlan keyPlan;
+      public final FieldPlan valPlan;
+      public final FieldPlan itemPlan;
+      public final FieldPlan existsPlan;
+
+      // the default instance of the generated class holding this field, or null
+      private final Message container;
+      // the generated getter of this field, bound to container's class, or null
+      private final MethodHandle getter;
+
+      private volatile Def messageDef;
+
+      FieldPlan(Def def, Descriptors.FieldDescriptor field) {
+        this(def, field,
+             (def.prototype != null && field.getContainingType() == def.type) ? def.prototype : null);
+      }
+
+      FieldPlan(Def def, Descriptors.FieldDescriptor field, Message container) {
+        FieldOptions options = field.getOptions();
+        this.def = def;
+        this.field = field;
+        this.container = container;
+        this.getter = getter(container, field);
+        this.key = def.intern(field.getName());
+
+        this.mapBy = def.intern(options.getExtension(Extensions.mapBy));
+        this.mapByName = (mapBy == null) ? null : def.namingStrategy.protoName(mapBy);
+        this.mapExists = def.intern(options.getExtension(Extensions.mapExists));
+        this.mapDeleted = def.intern(options.getExtension(Extensions.mapDeleted));
+        this.map = options.getExtension(Extensions.map);
+        this.set = options.getExtension(Extensions.set);
+
+        if (!field.isRepeated()) {
+          this.kind = Kind.PLAIN;
+        } else if (mapBy != null) {
+          this.kind = Kind.MAP_BY;
+        } else if (options.getExtension(Extensions.counter)) {
+          this.kind = Kind.COUNTER;
+        } else if (options.getExtension(Extensions.succession)) {
+          this.kind = Kind.SUCCESSION;
+        } else if (map) {
+          this.kind = Kind.MAP;
+        } else if (set) {
+          this.kind = Kind.SET;
+        } else {
+          this.kind = Kind.PLAIN;
+        }
+
+        GeneratedMessage.GeneratedExtension<FieldOptions, ?> nullExtension = nullExtension(field);
+        this.nullable = options.getExtension(Extensions.nullable) && nullExtension != null;
+        this.nullValue = nullable ? options.getExtension(nullExtension) : null;
+        if (nullable && field.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM) {
+          this.nullEnumValue = field.getEnumType().findValueByNumber((Integer)nullValue);
+        } else {
+          this.nullEnumValue = null;
+        }
+
+        Descriptors.Descriptor type = (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE)
+          ? field.getMessageType() : null;
+        Message entry = (type != null && container != null && (map || set))
+          ? fieldPrototype(container, field) : null;
+        this.keyPlan = subPlan(def, type, entry, map, "key");
+        this.valPlan = subPlan(def, type, entry, map, "val");
+        this.itemPlan = subPlan(def, type, entry, set, "item");
+        this.existsPlan = subPlan(def, type, entry, set, "exists");
+      }
+
+      private static FieldPlan subPlan(Def def, Descriptors.Descriptor type, Message entry,
+                                       boolean wanted, String name) {
+        if (!wanted || type == null) {
+          return null;
+        }
+        Descriptors.FieldDescriptor field = type.findFieldByName(name);
+        return (field == null) ? null : new FieldPlan(def, field, entry);
+      }
+
+      private static Message fieldPrototype(Message container, Descriptors.FieldDescriptor field) {
+        return container.newBuilderForType().newBuilderForField(field).getDefaultInstanceForType();
+      }
+
+      /**
+       * Bind the generated getter of field on the class of container, so reads skip
+       * GeneratedMessage's reflective accessor table.
+       */
+      private static MethodHandle getter(Message container, Descriptors.FieldDescriptor field) {
+        Method method = (container == null) ? null : generatedGetter(container.getClass(), field);
+        if (method == null) {
+          return null;
+        }
+        try {
+          return MethodHandles.publicLookup()
+            .unreflect(method)
+            .asType(MethodType.methodType(Object.class, Message.class));
+        } catch (IllegalAccessException e) {
+          return null;
+        }
+      }
+
+      /**
+       * The getter protoc generates for field in messageClass (getFoo, or getFooList for
+       * repeated fields), or null if there is none to use. Accessors that would clash with a
+       * method every message has, like getClass for a field named class, are given a trailing
+       * underscore by newer versions of protoc (getClass_), so a getter is only used if
+       * messageClass declares it itself and it returns the field's Java type, and a name that
+       * clashes is only tried with the underscore. Enum getters return Java enums rather than
+       * the EnumValueDescriptors getField returns, so enum fields have none.
+       */
+      public static Method generatedGetter(Class<?> messageClass,
+                                           Descriptors.FieldDescriptor field) {
+        if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM) {
+          return null;
+        }
+        String name = "get" + camelName(field.getName());
+        String suffix = field.isRepeated() ? "List" : "";
+        if (!isMessageMethod(name + suffix)) {
+          Method method = declaredGetter(messageClass, name + suffix, field);
+          if (method != null) {
+            return method;
+          }
+        }
+        return declaredGetter(messageClass, name + "_" + suffix, field);
+      }
+
+      private static Method declaredGetter(Class<?> messageClass, String name,
+                                           Descriptors.FieldDescriptor field) {
+        Method method;
+        try {
+          method = messageClass.getMethod(name);
+        } catch (NoSuchMethodException e) {
+          return null;
+        }
+        if (method.getDeclaringClass() != messageClass
+            || !javaClass(field).isAssignableFrom(method.getReturnType())) {
+          return null;
+        }
+        return method;
+      }
+
+      // whether every message has a method called name with no arguments
+      private static boolean isMessageMethod(String name) {
+        for (Class<?> c : new Class<?>[] {Object.class, Message.class}) {
+          try {
+            c.getMethod(name);
+            return true;
+          } catch (NoSuchMethodException e) {
+            // try the next one
+          }
+        }
+        return false;
+      }
+
+      // the class getField returns values of field as, or a supertype of it for messages
+      private static Class<?> javaClass(Descriptors.FieldDescriptor field) {
+        if (field.isRepeated()) {
+          return List.class;
+        }
+        switch (field.getJavaType()) {
+          case INT:         return int.class;
+          case LONG:        return long.class;
+          case FLOAT:       return float.class;
+          case DOUBLE:      return double.class;
+          case BOOLEAN:     return boolean.class;
+          case STRING:      return String.class;
+          case BYTE_STRING: return ByteString.class;
+          default:          return Message.class;
+        }
+      }
+
+      // The capitalized camel-case form protoc gives field names in generated accessor names.
+      static String camelName(String name) {
+        StringBuilder s = new StringBuilder(name.length());
+        boolean upper = true;
+        for (int i = 0; i < name.length(); i++) {
+          char c = name.charAt(i);
+          if (c >= 'a' && c <= 'z') {
+            s.append(upper ? Character.toUpperCase(c) : c);
+            upper = false;
+          } else if (c >= 'A' && c <= 'Z') {
+            s.append(c);
+            upper = false;
+          } else if (c >= '0' && c <= '9') {
+            s.append(c);
+            upper = true;
+          } else {
+            upper = true;
+          }
+        }
+        return s.toString();
+      }
+
+      /**
+       * The raw value of this field in message, as Message.getField returns it.
+       */
+      public Object get(Message message) {
+        MethodHandle getter = this.getter;
+        if (getter != null && message.getClass() == container.getClass()) {
+          try {
+            return (Object)getter.invokeExact(message);
+          } catch (RuntimeException e) {
+            throw e;
+          } catch (Error e) {
+            throw e;
+          } catch (Throwable e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return message.getField(field);
+      }
+
+      /**
+       * The Def for values of a message field, or null for other fields.
+       */
+      public Def messageDef() {
+        Def fieldDef = messageDef;
+        if (fieldDef == null && field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+          if (container != null) {
+            fieldDef = Def.create(fieldPrototype(container, field), def.namingStrategy, def.sizeLimit);
+          } else {
+            fieldDef = Def.create(field.getMessageType(), def.namingStrategy, def.sizeLimit);
+          }
+          messageDef = fieldDef;
+        }
+        return fieldDef;
+      }
+
+      public boolean isNull(Object value) {
+        return nullable && nullValue.equals(value);
+      }
+    }
 
     public final Descriptors.Descriptor type;
     public final NamingStrategy namingStrategy;
     public final int sizeLimit;
+    // the default instance of a generated message class, or null to use DynamicMessage
+    public final Message prototype;
+
+    // indexed by field index, and by field number when the numbers are reasonably dense
+    private final FieldPlan[] plans;
+    private final FieldPlan[] plansByNumber;
+    private final FieldPlan[] plansInNumberOrder;
+    // presence bits (indexed like plans) of the fields that are always present due to defaults
+    final long[] defaultBits;
 
     public static final Object NULL = new Object();
     // keys should be FieldDescriptors, except that NULL is used as a replacement for real null
     ConcurrentHashMap<Object, Object> key_to_field;
 
+    // Keyword keys resolved by identity to FieldPlans (or NULL for unknown keys). Seeded with the
+    // key of every field, and grown copy-on-write with other keywords as they are looked up.
+    private volatile KeywordTable keywords;
+    private static final int MAX_KEYWORDS = 256;
+
+    public final Metrics metrics = new Metrics(this);
+
     private static final class DefOptions {
       public final Descriptors.Descriptor type;
       public final NamingStrategy strat;
       public final int sizeLimit;
-      public DefOptions(Descriptors.Descriptor type, NamingStrategy strat, int sizeLimit) {
+      public final Message prototype;
+      public DefOptions(Descriptors.Descriptor type, NamingStrategy strat, int sizeLimit,
+                        Message prototype) {
         this.type = type;
         this.strat = strat;
         this.sizeLimit = sizeLimit;
+        this.prototype = prototype;
       }
 
       public boolean equals(Object other) {
         if (this.getClass() != other.getClass())
           return false;
         DefOptions od = (DefOptions)other;
-        return type.equals(od.type) && strat.equals(od.strat) && sizeLimit == od.sizeLimit;
+        return type.equals(od.type) && strat.equals(od.strat) && sizeLimit == od.sizeLimit
+          && prototype == od.prototype;
       }
 
       public int hashCode() {
@@ -144,37 +559,217 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
       }
     }
 
-    static ConcurrentHashMap<DefOptions, Def> defCache = new ConcurrentHashMap<DefOptions, Def>();
+    // Bounded so that applications which load descriptors dynamically don't leak Defs; least
+    // recently used Defs are evicted first. Nested Defs are also held by their parent's field
+    // plans, so eviction never changes the Def an existing message uses.
+    public static final int DEF_CACHE_SIZE =
+      Integer.getInteger("flatland.protobuf.def-cache-size", 4096);
 
-    public static Def create(Descriptors.Descriptor type, NamingStrategy strat, int sizeLimit) {
-      DefOptions opts = new DefOptions(type, strat, sizeLimit);
+    static final Map<DefOptions, Def> defCache = new LinkedHashMap<DefOptions, Def>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<DefOptions, Def> eldest) {
+        return size() > DEF_CACHE_SIZE;
+      }
+    };
 
-      Def def = defCache.get(type);
-      if (def == null) {
-        def = new Def(type, strat, sizeLimit);
-        defCache.putIfAbsent(opts, def);
+    private static Def create(DefOptions opts) {
+      synchronized (defCache) {
+        Def def = defCache.get(opts);
+        if (def == null) {
+          def = new Def(opts.type, opts.strat, opts.sizeLimit, opts.prototype);
+          defCache.put(opts, def);
+        }
+        return def;
       }
-      return def;
     }
 
-    protected Def(Descriptors.Descriptor type, NamingStrategy strat, int sizeLimit) {
+    public static Def create(Descriptors.Descriptor type, NamingStrategy strat, int sizeLimit) {
+      return create(new DefOptions(type, strat, sizeLimit, null));
+    }
+
+    /**
+     * Create a Def that parses and builds messages with the generated class of prototype instead
+     * of DynamicMessage.
+     */
+    public static Def create(Message prototype, NamingStrategy strat, int sizeLimit) {
+      return create(new DefOptions(prototype.getDescriptorForType(), strat, sizeLimit, prototype));
+    }
+
+    private static final int MAX_DENSE_FIELD_NUMBER = 1024;
+
+    protected Def(Descriptors.Descriptor type, NamingStrategy strat, int sizeLimit,
+                  Message prototype) {
       this.type = type;
+      this.prototype = prototype;
       this.key_to_field = new ConcurrentHashMap<Object, Object>();
       this.namingStrategy = strat;
       this.sizeLimit = sizeLimit;
+
+      List<Descriptors.FieldDescriptor> fields = type.getFields();
+      int maxNumber = 0;
+      this.plans = new FieldPlan[fields.size()];
+      for (Descriptors.FieldDescriptor field : fields) {
+        plans[field.getIndex()] = new FieldPlan(this, field);
+        maxNumber = Math.max(maxNumber, field.getNumber());
+      }
+      this.keywords = KeywordTable.of(plans);
+      for (FieldPlan plan : plans) {
+        // precompute the string form of each field's key, so it never reaches protoName; other
+        // strings, including raw field names, resolve only if the strategy maps them
+        if (plan.key != null) {
+          key_to_field.put(nameStr(plan.key), plan.field);
+        }
+      }
+      this.plansInNumberOrder = plans.clone();
+      Arrays.sort(plansInNumberOrder, new Comparator<FieldPlan>() {
+        public int compare(FieldPlan a, FieldPlan b) {
+          return a.field.getNumber() - b.field.getNumber();
+        }
+      });
+      if (maxNumber <= MAX_DENSE_FIELD_NUMBER) {
+        this.plansByNumber = new FieldPlan[maxNumber + 1];
+        for (FieldPlan plan : plans) {
+          plansByNumber[plan.field.getNumber()] = plan;
+        }
+      } else {
+        this.plansByNumber = null;
+      }
+
+      this.defaultBits = new long[(plans.length + 63) >>> 6];
+      for (FieldPlan plan : plans) {
+        if (!plan.field.isRepeated() && plan.field.hasDefaultValue()) {
+          int i = plan.field.getIndex();
+          defaultBits[i >>> 6] |= 1L << i;
+        }
+      }
+    }
+
+    /**
+     * The plans for all fields of this message type, in declaration order.
+     */
+    public FieldPlan[] plans() {
+      return plans;
+    }
+
+    /**
+     * The plans for all fields of this message type, in the order they are serialized.
+     */
+    public FieldPlan[] plansInNumberOrder() {
+      return plansInNumberOrder;
+    }
+
+    public FieldPlan plan(Descriptors.FieldDescriptor field) {
+      if (field == null) {
+        return null;
+      } else if (field.getContainingType() == type) {
+        return plans[field.getIndex()];
+      } else {
+        return new FieldPlan(this, field);
+      }
+    }
+
+    public FieldPlan planByNumber(int number) {
+      if (plansByNumber != null) {
+        return (number > 0 && number < plansByNumber.length) ? plansByNumber[number] : null;
+      }
+      return plan(type.findFieldByNumber(number));
+    }
+
+    public FieldPlan fieldPlan(Object key) {
+      if (key instanceof Keyword) {
+        return keywordPlan((Keyword)key);
+      }
+      return plan(fieldDescriptor(key));
+    }
+
+    private FieldPlan keywordPlan(Keyword key) {
+      KeywordTable table = keywords;
+      Object found = table.get(key);
+      if (found == null) {
+        Descriptors.FieldDescriptor field = lookupField(key);
+        found = (field == null) ? NULL : plans[field.getIndex()];
+        if (table.size() < MAX_KEYWORDS) {
+          // racing writers may drop each other's entries; they are simply looked up again
+          keywords = table.with(key, found);
+        }
+      }
+      return (found == NULL) ? null : (FieldPlan)found;
+    }
+
+    public boolean isGenerated() {
+      return prototype != null;
+    }
+
+    public Message parseFrom(byte[] bytes) throws InvalidProtocolBufferException {
+      Metrics.Timer timer = metrics.start(Metrics.Op.PARSE);
+      Message message = (prototype == null)
+        ? DynamicMessage.parseFrom(type, bytes)
+        : buildParsed(prototype.newBuilderForType().mergeFrom(bytes));
+      if (timer != null) {
+        timer.stop(bytes.length);
+      }
+      return message;
+    }
+
+    public Message parseFrom(CodedInputStream input) throws IOException {
+      Metrics.Timer timer = metrics.start(Metrics.Op.PARSE);
+      int offset = (timer != null) ? input.getTotalBytesRead() : 0;
+      input.setSizeLimit(sizeLimit);
+      Message message = (prototype == null)
+        ? DynamicMessage.parseFrom(type, input)
+        : buildParsed(prototype.newBuilderForType().mergeFrom(input));
+      if (timer != null) {
+        timer.stop(input.getTotalBytesRead() - offset);
+      }
+      return message;
+    }
+
+    private static Message buildParsed(Message.Builder builder)
+            throws InvalidProtocolBufferException {
+      if (!builder.isInitialized()) {
+        throw new UninitializedMessageException(builder.buildPartial())
+          .asInvalidProtocolBufferException();
+      }
+      return builder.build();
     }
 
-    public DynamicMessage parseFrom(byte[] bytes) throws InvalidProtocolBufferException {
-      return DynamicMessage.parseFrom(type, bytes);
+    /**
+     * Convert message to this Def's message class if it isn't already an instance of it, e.g. a
+     * DynamicMessage being stored in a generated message.
+     */
+    public Message coerce(Message message) {
+      if (prototype == null || prototype.getClass() == message.getClass()) {
+        return message;
+      }
+      return prototype.newBuilderForType().mergeFrom(message).build();
     }
 
-    public DynamicMessage parseFrom(CodedInputStream input) throws IOException {
+    /**
+     * Read one length-delimited message from input, or return null at the end of input. The size
+     * limit applies to each message separately, so input can be reused for many messages.
+     */
+    public Message parseDelimitedFrom(CodedInputStream input) throws IOException {
+      if (input.isAtEnd()) {
+        return null;
+      }
+      Metrics.Timer timer = metrics.start(Metrics.Op.PARSE_DELIMITED);
+      input.resetSizeCounter();
       input.setSizeLimit(sizeLimit);
-      return DynamicMessage.parseFrom(type, input);
+      int size = input.readRawVarint32();
+      int oldLimit = input.pushLimit(size);
+      Message.Builder builder = newBuilder();
+      builder.mergeFrom(input);
+      input.checkLastTagWas(0);
+      input.popLimit(oldLimit);
+      Message message = builder.build();
+      if (timer != null) {
+        timer.stop(size);
+      }
+      return message;
     }
 
-    public DynamicMessage.Builder parseDelimitedFrom(InputStream input) throws IOException {
-      DynamicMessage.Builder builder = newBuilder();
+    public Message.Builder parseDelimitedFrom(InputStream input) throws IOException {
+      Message.Builder builder = newBuilder();
       if (builder.mergeDelimitedFrom(input)) {
         return builder;
       } else {
@@ -182,8 +777,11 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
       }
     }
 
-    public DynamicMessage.Builder newBuilder() {
-      return DynamicMessage.newBuilder(type);
+    public Message.Builder newBuilder() {
+      if (prototype == null) {
+        return DynamicMessage.newBuilder(type);
+      }
+      return prototype.newBuilderForType();
     }
 
     public Descriptors.FieldDescriptor fieldDescriptor(Object key) {
@@ -193,19 +791,26 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
 
       if (key instanceof Descriptors.FieldDescriptor) {
         return (Descriptors.FieldDescriptor)key;
+      } else if (key instanceof Keyword) {
+        FieldPlan plan = keywordPlan((Keyword)key);
+        return (plan == null) ? null : plan.field;
       } else {
-        Object field = key_to_field.get(key);
-        if (field != null) {
-          if (field == NULL) {
-            return null;
-          }
-          return (Descriptors.FieldDescriptor)field;
-        } else {
-          field = type.findFieldByName(namingStrategy.protoName(key));
-          key_to_field.putIfAbsent(key, field == null ? NULL : field);
+        return lookupField(key);
+      }
+    }
+
+    private Descriptors.FieldDescriptor lookupField(Object key) {
+      Object field = key_to_field.get(key);
+      if (field != null) {
+        if (field == NULL) {
+          return null;
         }
         return (Descriptors.FieldDescriptor)field;
+      } else {
+        field = type.findFieldByName(namingStrategy.protoName(key));
+        key_to_field.putIfAbsent(key, field == null ? NULL : field);
       }
+      return (Descriptors.FieldDescriptor)field;
     }
 
     public String getName() {
@@ -255,16 +860,16 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
     }
 
     protected Object mapFieldBy(Descriptors.FieldDescriptor field) {
-      return intern(field.getOptions().getExtension(Extensions.mapBy));
+      return plan(field).mapBy;
     }
 
-    protected PersistentProtocolBufferMap mapValue(Descriptors.FieldDescriptor field,
+    protected PersistentProtocolBufferMap mapValue(FieldPlan plan,
                                                    PersistentProtocolBufferMap left,
                                                    PersistentProtocolBufferMap right) {
       if (left == null) {
         return right;
       } else {
-        Object map_exists = intern(field.getOptions().getExtension(Extensions.mapExists));
+        Object map_exists = plan.mapExists;
         if (map_exists != null) {
           if (left.valAt(map_exists) == Boolean.FALSE &&
               right.valAt(map_exists) == Boolean.TRUE) {
@@ -274,7 +879,7 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
           }
         }
 
-        Object map_deleted = intern(field.getOptions().getExtension(Extensions.mapDeleted));
+        Object map_deleted = plan.mapDeleted;
         if (map_deleted != null) {
           if (left.valAt(map_deleted) == Boolean.TRUE &&
               right.valAt(map_deleted) == Boolean.FALSE) {
@@ -289,27 +894,99 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
   }
 
   public final Def def;
-  private final DynamicMessage message;
+  // Null for an empty map or a lazy map. Final, so that maps cached in another map's values can
+  // be shared between threads without synchronization.
+  private final Message message;
+  // The message of a lazy map, once its bytes have been parsed.
+  private volatile Message parsed;
+  // The original encoding of a lazy map, served as is by toByteArray and writeTo.
+  private final byte[] bytes;
   private final IPersistentMap _meta;
   private final IPersistentMap ext;
+  // The projection this map was loaded through, or null. Fields it did not request are absent
+  // unless they are set, instead of reading as their default.
+  final Projection projection;
+
+  // Converted field values, indexed like def.plans() and filled in on first read. The message
+  // is immutable, so every thread computes the same values; races only cost a recomputation.
+  // Nested maps are stored with plain writes, which is safe because everything they read from
+  // is held in final fields.
+  private Object[] values;
+  private static final Object NIL = new Object();
+
+  // Bit i is set when the field of def.plans()[i] is present, so iteration and counting only
+  // touch populated fields. The bits are filled in before the array is published through the
+  // volatile field, so no thread can see a partly filled array; racing threads just compute
+  // equal arrays.
+  private volatile long[] presence;
+  private int count = -1;
+
+  // Cached hash, 0 until computed (a real hash of 0 is just recomputed, as with String). hasheq
+  // is left to APersistentMap, which caches it itself, since it does not exist in Clojure 1.3.
+  private int hash;
 
   static public PersistentProtocolBufferMap create(Def def, byte[] bytes)
           throws InvalidProtocolBufferException {
-    DynamicMessage message = def.parseFrom(bytes);
+    Message message = def.parseFrom(bytes);
     return new PersistentProtocolBufferMap(null, def, message);
   }
 
+  /**
+   * Wrap bytes without parsing them. The message is only parsed when it is first needed, and
+   * singular scalar fields are read by scanning for their tag until then. The bytes must not be
+   * modified afterwards; they are written back out as is, without re-encoding.
+   */
+  static public PersistentProtocolBufferMap createLazy(Def def, byte[] bytes) {
+    return new PersistentProtocolBufferMap(null, null, def, null, bytes, null, null);
+  }
+
   static public PersistentProtocolBufferMap parseFrom(Def def, CodedInputStream input)
           throws IOException {
-    DynamicMessage message = def.parseFrom(input);
+    Message message = def.parseFrom(input);
     return new PersistentProtocolBufferMap(null, def, message);
   }
 
+  /**
+   * Parse the remaining bytes of buffer without changing its position. Heap buffers are read
+   * from their backing array; direct and mapped buffers are copied into an array first, with one
+   * bulk get, since CodedInputStream can't read them directly.
+   */
+  static public PersistentProtocolBufferMap parseFrom(Def def, ByteBuffer buffer)
+          throws IOException {
+    return parseFrom(def, codedInput(buffer));
+  }
+
+  static CodedInputStream codedInput(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return CodedInputStream.newInstance(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                                          buffer.remaining());
+    } else {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.duplicate().get(bytes);
+      return CodedInputStream.newInstance(bytes);
+    }
+  }
+
+  static public PersistentProtocolBufferMap parseDelimitedFrom(Def def, CodedInputStream input)
+          throws IOException {
+    Message message = def.parseDelimitedFrom(input);
+    if (message != null) {
+      return new PersistentProtocolBufferMap(null, def, message);
+    } else {
+      return null;
+    }
+  }
+
   static public PersistentProtocolBufferMap parseDelimitedFrom(Def def, InputStream input)
           throws IOException {
-    DynamicMessage.Builder builder = def.parseDelimitedFrom(input);
+    Metrics.Timer timer = def.metrics.start(Metrics.Op.PARSE_DELIMITED);
+    Message.Builder builder = def.parseDelimitedFrom(input);
     if (builder != null) {
-      return new PersistentProtocolBufferMap(null, def, builder);
+      PersistentProtocolBufferMap proto = new PersistentProtocolBufferMap(null, def, builder);
+      if (timer != null) {
+        timer.stop(proto.message.getSerializedSize());
+      }
+      return proto;
     } else {
       return null;
     }
@@ -325,72 +1002,170 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
     this.ext = null;
     this.def = def;
     this.message = null;
+    this.bytes = null;
+    this.projection = null;
   }
 
-  protected PersistentProtocolBufferMap(IPersistentMap meta, Def def, DynamicMessage message) {
+  protected PersistentProtocolBufferMap(IPersistentMap meta, Def def, Message message) {
     this._meta = meta;
     this.ext = null;
     this.def = def;
     this.message = message;
+    this.bytes = null;
+    this.projection = null;
   }
 
   protected PersistentProtocolBufferMap(IPersistentMap meta, IPersistentMap ext, Def def,
-          DynamicMessage message) {
+          Message message) {
+    this._meta = meta;
+    this.ext = ext;
+    this.def = def;
+    this.message = message;
+    this.bytes = null;
+    this.projection = null;
+  }
+
+  private PersistentProtocolBufferMap(IPersistentMap meta, IPersistentMap ext, Def def,
+          Message message, byte[] bytes, Object[] values, Projection projection) {
     this._meta = meta;
     this.ext = ext;
     this.def = def;
     this.message = message;
+    this.bytes = bytes;
+    this.values = values;
+    this.projection = projection;
   }
 
-  protected PersistentProtocolBufferMap(IPersistentMap meta, Def def, DynamicMessage.Builder builder) {
+  static PersistentProtocolBufferMap projected(Def def, Message message, Projection projection) {
+    return new PersistentProtocolBufferMap(null, null, def, message, null, null, projection);
+  }
+
+  // A map of the same def and projection holding the message built by builder.
+  PersistentProtocolBufferMap rebuilt(IPersistentMap meta, IPersistentMap ext,
+                                      Message.Builder builder) {
+    if (projection == null) {
+      return new PersistentProtocolBufferMap(meta, ext, def, builder);
+    }
+    return new PersistentProtocolBufferMap(meta, ext, def, builder.build(), null, null, projection);
+  }
+
+  protected PersistentProtocolBufferMap(IPersistentMap meta, Def def, Message.Builder builder) {
     this._meta = meta;
     this.ext = null;
     this.def = def;
     this.message = builder.build();
+    this.bytes = null;
+    this.projection = null;
   }
 
   protected PersistentProtocolBufferMap(IPersistentMap meta, IPersistentMap ext, Def def,
-          DynamicMessage.Builder builder) {
+          Message.Builder builder) {
     this._meta = meta;
     this.ext = ext;
     this.def = def;
     this.message = builder.build();
+    this.bytes = null;
+    this.projection = null;
   }
 
   public byte[] toByteArray() {
-    return message().toByteArray();
+    if (bytes != null) {
+      return bytes.clone();
+    }
+    Metrics.Timer timer = def.metrics.start(Metrics.Op.SERIALIZE);
+    byte[] out = message().toByteArray();
+    if (timer != null) {
+      timer.stop(out.length);
+    }
+    return out;
+  }
+
+  public int getSerializedSize() {
+    if (bytes != null) {
+      return bytes.length;
+    }
+    return message().getSerializedSize();
   }
 
   public void writeTo(CodedOutputStream output) throws IOException {
-    message().writeTo(output);
+    Metrics.Timer timer = (bytes == null) ? def.metrics.start(Metrics.Op.SERIALIZE) : null;
+    writeUnrecorded(output);
+    if (timer != null) {
+      timer.stop(getSerializedSize());
+    }
+  }
+
+  /**
+   * writeTo without recording metrics, for callers that are already recording an outer call.
+   */
+  void writeUnrecorded(CodedOutputStream output) throws IOException {
+    if (bytes != null) {
+      output.writeRawBytes(bytes);
+    } else {
+      message().writeTo(output);
+    }
   }
 
   public void writeDelimitedTo(OutputStream output) throws IOException {
-    message().writeDelimitedTo(output);
+    if (bytes != null) {
+      // the bytes are already encoded, so a CodedOutputStream and its buffer aren't needed
+      Wire.writeRawVarint32(output, bytes.length);
+      output.write(bytes);
+    } else {
+      Metrics.Timer timer = def.metrics.start(Metrics.Op.SERIALIZE);
+      Message message = message();
+      message.writeDelimitedTo(output);
+      if (timer != null) {
+        timer.stop(message.getSerializedSize());
+      }
+    }
+  }
+
+  /**
+   * Whether the message has been parsed. Only lazy maps start out unparsed.
+   */
+  public boolean isParsed() {
+    return bytes == null || parsed != null;
   }
 
   public Descriptors.Descriptor getMessageType() {
     return def.getMessageType();
   }
 
-  public DynamicMessage message() {
-    if (message == null) {
-      return def.newBuilder().build(); // This will only work if an empty message is valid.
-    } else {
+  public Message message() {
+    Message message = this.message;
+    if (message != null) {
       return message;
+    } else if (bytes == null) {
+      return def.newBuilder().build(); // This will only work if an empty message is valid.
+    }
+    message = parsed;
+    if (message == null) {
+      try {
+        message = def.parseFrom(bytes);
+      } catch (InvalidProtocolBufferException e) {
+        throw new RuntimeException(e);
+      }
+      parsed = message;
     }
+    return message;
   }
 
-  public DynamicMessage.Builder builder() {
-    if (message == null) {
+  public Message.Builder builder() {
+    if (message == null && bytes == null) {
       return def.newBuilder();
     } else {
-      return message.toBuilder();
+      return message().toBuilder();
     }
   }
 
   protected Object fromProtoValue(Descriptors.FieldDescriptor field, Object value) {
-    return fromProtoValue(field, value, true);
+    return fromProtoValue(def.plan(field), value, true);
+  }
+
+  protected Object fromProtoValue(Descriptors.FieldDescriptor field, Object value,
+                                  boolean use_extensions) {
+    return fromProtoValue(def.plan(field), value, use_extensions);
   }
 
   static Keyword k_key = Keyword.intern("key");
@@ -398,112 +1173,107 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
   static Keyword k_item = Keyword.intern("item");
   static Keyword k_exists = Keyword.intern("exists");
 
-  protected Object fromProtoValue(Descriptors.FieldDescriptor field, Object value,
-                                  boolean use_extensions) {
+  protected Object fromProtoValue(Def.FieldPlan plan, Object value, boolean use_extensions) {
+    Descriptors.FieldDescriptor field = plan.field;
     if (value instanceof List) {
       List<?> values = (List<?>)value;
       Iterator<?> iterator = values.iterator();
 
       if (use_extensions) {
-        Object map_field_by = def.mapFieldBy(field);
-        DescriptorProtos.FieldOptions options = field.getOptions();
-        if (map_field_by != null) {
-          ITransientMap map = (ITransientMap)OrderedMap.EMPTY.asTransient();
-          while (iterator.hasNext()) {
-            PersistentProtocolBufferMap v =
-              (PersistentProtocolBufferMap)fromProtoValue(field, iterator.next());
-            Object k = v.valAt(map_field_by);
-            PersistentProtocolBufferMap existing = (PersistentProtocolBufferMap)map.valAt(k);
-            map = map.assoc(k, def.mapValue(field, existing, v));
+        switch (plan.kind) {
+          case MAP_BY: {
+            ITransientMap map = (ITransientMap)OrderedMap.EMPTY.asTransient();
+            while (iterator.hasNext()) {
+              PersistentProtocolBufferMap v =
+                (PersistentProtocolBufferMap)fromProtoValue(plan, iterator.next(), true);
+              Object k = v.valAt(plan.mapBy);
+              PersistentProtocolBufferMap existing = (PersistentProtocolBufferMap)map.valAt(k);
+              map = map.assoc(k, def.mapValue(plan, existing, v));
+            }
+            return map.persistent();
           }
-          return map.persistent();
-        } else if (options.getExtension(Extensions.counter)) {
-          Object count = iterator.next();
-          while (iterator.hasNext()) {
-            count = Numbers.add(count, iterator.next());
+          case COUNTER: {
+            Object count = iterator.next();
+            while (iterator.hasNext()) {
+              count = Numbers.add(count, iterator.next());
+            }
+            return count;
           }
-          return count;
-        } else if (options.getExtension(Extensions.succession)) {
-          return fromProtoValue(field, values.get(values.size() - 1));
-        } else if (options.getExtension(Extensions.map)) {
-          Descriptors.Descriptor type = field.getMessageType();
-          Descriptors.FieldDescriptor key_field = type.findFieldByName("key");
-          Descriptors.FieldDescriptor val_field = type.findFieldByName("val");
-
-          ITransientMap map = (ITransientMap)OrderedMap.EMPTY.asTransient();
-          while (iterator.hasNext()) {
-            DynamicMessage message = (DynamicMessage)iterator.next();
-            Object k = fromProtoValue(key_field, message.getField(key_field));
-            Object v = fromProtoValue(val_field, message.getField(val_field));
-            Object existing = map.valAt(k);
-
-            if (existing instanceof PersistentProtocolBufferMap) {
-              map = map.assoc(k, def.mapValue(field,
-                                              (PersistentProtocolBufferMap)existing,
-                                              (PersistentProtocolBufferMap)v));
-            } else if (existing instanceof IPersistentCollection) {
-              map = map.assoc(k, ((IPersistentCollection)existing).cons(v));
-            } else {
-              map = map.assoc(k, v);
+          case SUCCESSION:
+            return fromProtoValue(plan, values.get(values.size() - 1), true);
+          case MAP: {
+            ITransientMap map = (ITransientMap)OrderedMap.EMPTY.asTransient();
+            while (iterator.hasNext()) {
+              Message message = (Message)iterator.next();
+              Object k = fromProtoValue(plan.keyPlan, plan.keyPlan.get(message), true);
+              Object v = fromProtoValue(plan.valPlan, plan.valPlan.get(message), true);
+              Object existing = map.valAt(k);
+
+              if (existing instanceof PersistentProtocolBufferMap) {
+                map = map.assoc(k, def.mapValue(plan,
+                                                (PersistentProtocolBufferMap)existing,
+                                                (PersistentProtocolBufferMap)v));
+              } else if (existing instanceof IPersistentCollection) {
+                map = map.assoc(k, ((IPersistentCollection)existing).cons(v));
+              } else {
+                map = map.assoc(k, v);
+              }
             }
+            return map.persistent();
           }
-          return map.persistent();
-        } else if (options.getExtension(Extensions.set)) {
-          Descriptors.Descriptor type = field.getMessageType();
-          Descriptors.FieldDescriptor item_field = type.findFieldByName("item");
-          Descriptors.FieldDescriptor exists_field = type.findFieldByName("exists");
-
-          ITransientSet set = (ITransientSet)OrderedSet.EMPTY.asTransient();
-          while (iterator.hasNext()) {
-            DynamicMessage message = (DynamicMessage)iterator.next();
-            Object item = fromProtoValue(item_field, message.getField(item_field));
-            Boolean exists = (Boolean)message.getField(exists_field);
-
-            if (exists) {
-              set = (ITransientSet)set.conj(item);
-            } else {
-              try {
+          case SET: {
+            ITransientSet set = (ITransientSet)OrderedSet.EMPTY.asTransient();
+            while (iterator.hasNext()) {
+              Message message = (Message)iterator.next();
+              Object item = fromProtoValue(plan.itemPlan, plan.itemPlan.get(message), true);
+              Boolean exists = (Boolean)plan.existsPlan.get(message);
+
+              if (exists) {
+                set = (ITransientSet)set.conj(item);
+              } else {
+                // disjoining an item that was never added leaves the set as it is
                 set = set.disjoin(item);
-              } catch (Exception e) {
-                e.printStackTrace();
               }
             }
+            return set.persistent();
           }
-          return set.persistent();
+          default:
+            break;
         }
       }
+      if (!(use_extensions && plan.nullable) && PrimitiveVector.isNumeric(field.getJavaType())) {
+        return PrimitiveVector.fromList(field.getJavaType(), values);
+      }
       List<Object> list = new ArrayList<Object>(values.size());
       while (iterator.hasNext()) {
-        list.add(fromProtoValue(field, iterator.next(), use_extensions));
+        list.add(fromProtoValue(plan, iterator.next(), use_extensions));
       }
       return PersistentVector.create(list);
     } else {
       switch (field.getJavaType()) {
         case ENUM:
           Descriptors.EnumValueDescriptor e = (Descriptors.EnumValueDescriptor)value;
-          if (use_extensions &&
-              field.getOptions().getExtension(Extensions.nullable) &&
-              field.getOptions().getExtension(nullExtension(field)).equals(e.getNumber())) {
+          if (use_extensions && plan.isNull(e.getNumber())) {
             return null;
           } else {
             return def.clojureEnumValue(e);
           }
         case MESSAGE:
-          Def fieldDef = PersistentProtocolBufferMap.Def.create(field.getMessageType(),
-                                                                this.def.namingStrategy,
-                                                                this.def.sizeLimit);
-          DynamicMessage message = (DynamicMessage)value;
+          Def fieldDef = plan.messageDef();
+          Message message = (Message)value;
 
           // Total hack because getField() doesn't return an empty array for repeated messages.
           if (field.isRepeated() && !message.isInitialized()) {
-            return fromProtoValue(field, new ArrayList<Object>(), use_extensions);
+            return fromProtoValue(plan, new ArrayList<Object>(), use_extensions);
           }
 
+          Projection nested = (projection == null) ? null : projection.nested(field);
+          if (nested != null) {
+            return projected(fieldDef, message, nested);
+          }
           return new PersistentProtocolBufferMap(null, fieldDef, message);
         default:
-          if (use_extensions &&
-              field.getOptions().getExtension(Extensions.nullable) &&
-              field.getOptions().getExtension(nullExtension(field)).equals(value)) {
+          if (use_extensions && plan.isNull(value)) {
             return null;
           } else {
             return value;
@@ -513,17 +1283,21 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
   }
 
   protected Object toProtoValue(Descriptors.FieldDescriptor field, Object value) {
-    if (value == null && field.getOptions().getExtension(Extensions.nullable)) {
-      value = field.getOptions().getExtension(nullExtension(field));
+    return toProtoValue(def.plan(field), value);
+  }
+
+  protected Object toProtoValue(Def.FieldPlan plan, Object value) {
+    Descriptors.FieldDescriptor field = plan.field;
+    if (value == null && plan.nullable) {
+      value = plan.nullValue;
 
       if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM) {
-        Descriptors.EnumDescriptor enum_type = field.getEnumType();
-        Descriptors.EnumValueDescriptor enum_value = enum_type.findValueByNumber((Integer)value);
-        if (enum_value == null) {
+        if (plan.nullEnumValue == null) {
           PrintWriter err = (PrintWriter)RT.ERR.deref();
-          err.format("invalid enum number %s for enum type %s\n", value, enum_type.getFullName());
+          err.format("invalid enum number %s for enum type %s\n", value,
+                     field.getEnumType().getFullName());
         }
-        return enum_value;
+        return plan.nullEnumValue;
       }
     }
 
@@ -550,12 +1324,9 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
         if (value instanceof PersistentProtocolBufferMap) {
           protobuf = (PersistentProtocolBufferMap)value;
         } else {
-          Def fieldDef = PersistentProtocolBufferMap.Def.create(field.getMessageType(),
-                                                                this.def.namingStrategy,
-                                                                this.def.sizeLimit);
-          protobuf = PersistentProtocolBufferMap.construct(fieldDef, value);
+          protobuf = PersistentProtocolBufferMap.construct(plan.messageDef(), value);
         }
-        return protobuf.message();
+        return plan.messageDef().coerce(protobuf.message());
       default:
         return value;
     }
@@ -581,7 +1352,7 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
     }
   }
 
-  protected void addRepeatedField(DynamicMessage.Builder builder,
+  protected void addRepeatedField(Message.Builder builder,
           Descriptors.FieldDescriptor field, Object value) {
     try {
       builder.addRepeatedField(field, value);
@@ -592,7 +1363,7 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
     }
   }
 
-  protected void setField(DynamicMessage.Builder builder, Descriptors.FieldDescriptor field,
+  protected void setField(Message.Builder builder, Descriptors.FieldDescriptor field,
           Object value) {
     try {
       builder.setField(field, value);
@@ -604,42 +1375,47 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
   }
 
   // returns true if the protobuf can store this key
-  protected boolean addField(DynamicMessage.Builder builder, Object key, Object value) {
+  protected boolean addField(Message.Builder builder, Object key, Object value) {
     if (key == null) {
       return false;
     }
-    Descriptors.FieldDescriptor field = def.fieldDescriptor(key);
-    if (field == null) {
+    Def.FieldPlan plan = def.fieldPlan(key);
+    if (plan == null) {
       return false;
     }
-    if (value == null && !(field.getOptions().getExtension(Extensions.nullable))) {
+    Descriptors.FieldDescriptor field = plan.field;
+    if (value == null && !plan.nullable) {
       return true;
     }
-    boolean set = field.getOptions().getExtension(Extensions.set);
+    boolean set = plan.set;
 
     if (field.isRepeated()) {
       builder.clearField(field);
+      PrimitiveVector primitives = PrimitiveVector.wrap(value);
+      if (primitives != null) {
+        value = primitives;
+      }
       if (value instanceof Sequential && !set) {
         for (ISeq s = RT.seq(value); s != null; s = s.next()) {
-          Object v = toProtoValue(field, s.first());
+          Object v = toProtoValue(plan, s.first());
           addRepeatedField(builder, field, v);
         }
       } else {
-        Object map_field_by = def.mapFieldBy(field);
+        Object map_field_by = plan.mapBy;
         if (map_field_by != null) {
-          String field_name = def.namingStrategy.protoName(map_field_by);
+          String field_name = plan.mapByName;
           for (ISeq s = RT.seq(value); s != null; s = s.next()) {
             Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
             IPersistentMap map = (IPersistentMap)e.getValue();
             Object k = e.getKey();
-            Object v = toProtoValue(field, map.assoc(map_field_by, k).assoc(field_name, k));
+            Object v = toProtoValue(plan, map.assoc(map_field_by, k).assoc(field_name, k));
             addRepeatedField(builder, field, v);
           }
-        } else if (field.getOptions().getExtension(Extensions.map)) {
+        } else if (plan.map) {
           for (ISeq s = RT.seq(value); s != null; s = s.next()) {
             Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
             Object[] map = {k_key, e.getKey(), k_val, e.getValue()};
-            addRepeatedField(builder, field, toProtoValue(field, new PersistentArrayMap(map)));
+            addRepeatedField(builder, field, toProtoValue(plan, new PersistentArrayMap(map)));
           }
         } else if (set) {
           Object k, v;
@@ -654,16 +1430,16 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
               v = true;
             }
             Object[] map = {k_item, k, k_exists, v};
-            addRepeatedField(builder, field, toProtoValue(field, new PersistentArrayMap(map)));
+            addRepeatedField(builder, field, toProtoValue(plan, new PersistentArrayMap(map)));
           }
         } else {
-          addRepeatedField(builder, field, toProtoValue(field, value));
+          addRepeatedField(builder, field, toProtoValue(plan, value));
         }
       }
     } else {
-      Object v = toProtoValue(field, value);
-      if (v instanceof DynamicMessage) {
-        v = ((DynamicMessage)builder.getField(field)).toBuilder().mergeFrom((DynamicMessage)v).build();
+      Object v = toProtoValue(plan, value);
+      if (v instanceof Message) {
+        v = ((Message)builder.getField(field)).toBuilder().mergeFrom((Message)v).build();
       }
       setField(builder, field, v);
     }
@@ -676,7 +1452,64 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
     if (meta == meta()) {
       return this;
     }
-    return new PersistentProtocolBufferMap(meta, ext, def, message);
+    PersistentProtocolBufferMap proto =
+      new PersistentProtocolBufferMap(meta, ext, def, message, bytes, values, projection);
+    proto.parsed = parsed;
+    proto.presence = presence;
+    proto.count = count;
+    proto.hash = hash;
+    return proto;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = super.hashCode();
+      hash = h;
+    }
+    return h;
+  }
+
+  /**
+   * Whether other holds the same message of the same Def with no extra keys, in which case both
+   * read as the same map. Different messages can still read as equal maps (e.g. an explicit
+   * default, or counters appended in a different order), so false means nothing.
+   */
+  private boolean sameMessage(PersistentProtocolBufferMap other) {
+    if (other.def != def || other.projection != projection || ext != null || other.ext != null) {
+      return false;
+    }
+    if (message == null && other.message == null && bytes != null && other.bytes != null) {
+      return Arrays.equals(bytes, other.bytes);
+    }
+    return message().equals(other.message());
+  }
+
+  @Override
+  public boolean equiv(Object o) {
+    if (o == this) {
+      return true;
+    } else if (o instanceof PersistentProtocolBufferMap
+               && sameMessage((PersistentProtocolBufferMap)o)) {
+      return true;
+    }
+    return super.equiv(o);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    } else if (o instanceof PersistentProtocolBufferMap) {
+      PersistentProtocolBufferMap other = (PersistentProtocolBufferMap)o;
+      if (hash != 0 && other.hash != 0 && hash != other.hash) {
+        return false;
+      } else if (sameMessage(other)) {
+        return true;
+      }
+    }
+    return super.equals(o);
   }
 
   @Override
@@ -690,13 +1523,18 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
   }
 
   private boolean protoContainsKey(Object key) {
-    Descriptors.FieldDescriptor field = def.fieldDescriptor(key);
+    return hasField(message(), def.fieldDescriptor(key), projection);
+  }
+
+  static boolean hasField(MessageOrBuilder message, Descriptors.FieldDescriptor field,
+                          Projection projection) {
     if (field == null) {
       return false;
     } else if (field.isRepeated()) {
-      return message().getRepeatedFieldCount(field) > 0;
+      return message.getRepeatedFieldCount(field) > 0;
     } else {
-      return message().hasField(field) || field.hasDefaultValue();
+      return message.hasField(field)
+        || (field.hasDefaultValue() && (projection == null || projection.requests(field)));
     }
   }
 
@@ -724,22 +1562,112 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
   }
 
   public Object getValAt(Object key, Object notFound, boolean use_extensions) {
-    Descriptors.FieldDescriptor field = def.fieldDescriptor(key);
-    if (protoContainsKey(key)) {
-      return fromProtoValue(field, message().getField(field), use_extensions);
-    } else {
-      return RT.get(ext, key, notFound);
+    Def.FieldPlan plan = def.fieldPlan(key);
+    if (plan != null && use_extensions && bytes != null && parsed == null && isScalar(plan)) {
+      Object value = scannedValue(plan);
+      if (value != Wire.MISMATCH) {
+        return (value == sentinel) ? RT.get(ext, key, notFound) : value;
+      }
+    }
+    if (plan != null) {
+      Message message = message();
+      if (hasField(message, plan.field, projection)) {
+        if (use_extensions) {
+          return fieldValue(plan, message);
+        }
+        Metrics.Timer timer = def.metrics.start(Metrics.Op.CONVERT);
+        Object value = fromProtoValue(plan, plan.get(message), false);
+        if (timer != null) {
+          timer.converted(plan);
+        }
+        return value;
+      }
+    }
+    return RT.get(ext, key, notFound);
+  }
+
+  private boolean isScalar(Def.FieldPlan plan) {
+    Descriptors.FieldDescriptor field = plan.field;
+    return !field.isRepeated() && field.getContainingType() == def.type
+      && field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE;
+  }
+
+  /**
+   * The value of a singular scalar field of an unparsed lazy map, found by scanning its bytes for
+   * the field's tag, sentinel if the field is not present, or Wire.MISMATCH if the bytes need a
+   * full parse to be read correctly.
+   */
+  private Object scannedValue(Def.FieldPlan plan) {
+    Object[] values = this.values;
+    if (values == null) {
+      values = new Object[def.plans().length];
+      this.values = values;
+    }
+    int i = plan.field.getIndex();
+    Object v = values[i];
+    if (v != null) {
+      return (v == NIL) ? null : v;
+    }
+    Object raw;
+    try {
+      CodedInputStream in = CodedInputStream.newInstance(bytes);
+      in.setSizeLimit(def.sizeLimit);
+      raw = Wire.scanScalar(in, plan.field);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (raw == Wire.MISMATCH) {
+      return raw;
+    } else if (raw == null) {
+      if (!plan.field.hasDefaultValue()) {
+        return sentinel;
+      }
+      raw = plan.field.getDefaultValue();
+    }
+    v = fromProtoValue(plan, raw, true);
+    values[i] = (v == null) ? NIL : v;
+    return v;
+  }
+
+  private Object fieldValue(Def.FieldPlan plan, Message message) {
+    if (plan.field.getContainingType() != def.type) {
+      return convertField(plan, message);
     }
+    Object[] values = this.values;
+    if (values == null) {
+      values = new Object[def.plans().length];
+      this.values = values;
+    }
+    int i = plan.field.getIndex();
+    Object v = values[i];
+    if (v == null) {
+      v = convertField(plan, message);
+      values[i] = (v == null) ? NIL : v;
+      return v;
+    }
+    return (v == NIL) ? null : v;
+  }
+
+  private Object convertField(Def.FieldPlan plan, Message message) {
+    Metrics.Timer timer = def.metrics.start(Metrics.Op.CONVERT);
+    Object v = fromProtoValue(plan, plan.get(message), true);
+    if (timer != null) {
+      timer.converted(plan);
+    }
+    return v;
   }
 
   @Override
   public PersistentProtocolBufferMap assoc(Object key, Object value) {
-    DynamicMessage.Builder builder = builder();
+    Message.Builder builder = builder();
 
     if (addField(builder, key, value)) {
-      return new PersistentProtocolBufferMap(meta(), ext, def, builder);
+      return rebuilt(meta(), ext, builder);
     } else {
-      return new PersistentProtocolBufferMap(meta(), (IPersistentMap)RT.assoc(ext, key, value), def, builder);
+      if (Metrics.enabled) {
+        def.metrics.extFallback(key);
+      }
+      return rebuilt(meta(), (IPersistentMap)RT.assoc(ext, key, value), builder);
     }
   }
 
@@ -763,17 +1691,20 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
       }
       return assoc(v.nth(0), v.nth(1));
     } else {
-      DynamicMessage.Builder builder = builder();
+      Message.Builder builder = builder();
       IPersistentMap ext = this.ext;
       for (ISeq s = RT.seq(o); s != null; s = s.next()) {
         Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
 
         Object k = e.getKey(), v = e.getValue();
         if (!addField(builder, k, v)) {
+          if (Metrics.enabled) {
+            def.metrics.extFallback(k);
+          }
           ext = (IPersistentMap)RT.assoc(ext, k, v);
         }
       }
-      return new PersistentProtocolBufferMap(meta(), ext, def, builder);
+      return rebuilt(meta(), ext, builder);
     }
   }
 
@@ -784,7 +1715,80 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
     } else {
       proto = construct(def, map);
     }
-    return new PersistentProtocolBufferMap(meta(), ext, def, builder().mergeFrom(proto.message()));
+    return rebuilt(meta(), ext, builder().mergeFrom(proto.message()));
+  }
+
+  /**
+   * Like append, but folds the merged fields right away instead of when they are read: counters
+   * are summed, successions keep their last value, and map_by, map and set fields keep a single
+   * entry per key. The result reads the same as append would, but does not grow with every merge.
+   */
+  public PersistentProtocolBufferMap appendCompact(IPersistentMap map) {
+    return append(map).compact();
+  }
+
+  /**
+   * Fold every counter, succession, map_by, map and set field that holds more than one entry
+   * into the entries it reads as. Set fields keep one entry per item, including the removed
+   * ones, so that appending the result still removes them. Map values with repeated vals are
+   * left alone, because reading them nests each appended val rather than merging it.
+   */
+  public PersistentProtocolBufferMap compact() {
+    Message message = message();
+    Message.Builder builder = null;
+    for (Def.FieldPlan plan : def.plans()) {
+      if (plan.kind == Def.Kind.PLAIN || message.getRepeatedFieldCount(plan.field) < 2
+          || (plan.kind == Def.Kind.MAP && plan.valPlan.field.isRepeated())) {
+        continue;
+      }
+      Object value = (plan.kind == Def.Kind.SET)
+        ? setEntries(plan, message)
+        : fieldValue(plan, message);
+      if (plan.kind == Def.Kind.MAP_BY
+          || (plan.kind == Def.Kind.MAP && value != null
+              && plan.valPlan.field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE)) {
+        ITransientMap compacted = (ITransientMap)OrderedMap.EMPTY.asTransient();
+        for (ISeq s = RT.seq(value); s != null; s = s.next()) {
+          Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
+          compacted = compacted.assoc(e.getKey(), ((PersistentProtocolBufferMap)e.getValue()).compact());
+        }
+        value = compacted.persistent();
+      }
+      if (builder == null) {
+        builder = message.toBuilder();
+      }
+      builder.clearField(plan.field);
+      addField(builder, plan.key, value);
+    }
+    if (builder == null) {
+      return this;
+    }
+    return rebuilt(meta(), ext, builder);
+  }
+
+  /**
+   * The last exists flag of every item of a set field, as a map from item to flag, in the order
+   * the items read in.
+   */
+  private IPersistentMap setEntries(Def.FieldPlan plan, Message message) {
+    LinkedHashMap<Object, Boolean> entries = new LinkedHashMap<Object, Boolean>();
+    for (Object value : (List<?>)plan.get(message)) {
+      Message entry = (Message)value;
+      Object item = fromProtoValue(plan.itemPlan, plan.itemPlan.get(entry), true);
+      Boolean exists = (Boolean)plan.existsPlan.get(entry);
+      // an item that is added again keeps its place, as it does in the set
+      if (!(exists && Boolean.TRUE.equals(entries.get(item)))) {
+        entries.remove(item);
+        entries.put(item, exists);
+      }
+    }
+    Object[] kvs = new Object[entries.size() * 2];
+    int i = 0;
+    for (Map.Entry<Object, Boolean> e : entries.entrySet()) {
+      kvs[i++] = e.getKey();
+      kvs[i++] = e.getValue();
+    }
+    return new PersistentArrayMap(kvs);
   }
 
   @Override
@@ -795,34 +1799,141 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
       if (newExt == ext) {
         return this;
       }
-      return new PersistentProtocolBufferMap(meta(), newExt, def, builder());
+      return rebuilt(meta(), newExt, builder());
     }
     if (field.isRequired()) {
       throw new RuntimeException("Can't remove required field");
     }
 
-    return new PersistentProtocolBufferMap(meta(), ext, def, builder().clearField(field));
+    return rebuilt(meta(), ext, builder().clearField(field));
+  }
+
+  long[] presence() {
+    long[] presence = this.presence;
+    if (presence == null) {
+      presence = (projection == null) ? def.defaultBits.clone() : projection.defaultBits();
+      for (Descriptors.FieldDescriptor field : message().getAllFields().keySet()) {
+        if (!field.isExtension()) {
+          int i = field.getIndex();
+          presence[i >>> 6] |= 1L << i;
+        }
+      }
+      this.presence = presence;
+    }
+    return presence;
+  }
+
+  // index of the first set bit at or after from, or -1
+  static int nextPresent(long[] bits, int from) {
+    int word = from >>> 6;
+    if (word >= bits.length) {
+      return -1;
+    }
+    long w = bits[word] & (-1L << from);
+    while (w == 0) {
+      if (++word == bits.length) {
+        return -1;
+      }
+      w = bits[word];
+    }
+    return (word << 6) + Long.numberOfTrailingZeros(w);
+  }
+
+  private static final Class<?> REDUCED = reducedClass();
+
+  // clojure.lang.Reduced only exists as of Clojure 1.5
+  private static Class<?> reducedClass() {
+    try {
+      return Class.forName("clojure.lang.Reduced");
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  static boolean isReduced(Object o) {
+    return REDUCED != null && REDUCED.isInstance(o);
+  }
+
+  /**
+   * Reduce over the populated fields and then the ext map without creating a seq. Used by
+   * reduce-kv through the IKVReduce protocol.
+   */
+  public Object kvreduce(IFn f, Object init) {
+    Def.FieldPlan[] plans = def.plans();
+    long[] bits = presence();
+    Message message = message();
+    for (int i = nextPresent(bits, 0); i >= 0; i = nextPresent(bits, i + 1)) {
+      init = f.invoke(init, plans[i].key, fieldValue(plans[i], message));
+      if (isReduced(init)) {
+        return ((IDeref)init).deref();
+      }
+    }
+    for (ISeq s = RT.seq(ext); s != null; s = s.next()) {
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
+      init = f.invoke(init, e.getKey(), e.getValue());
+      if (isReduced(init)) {
+        return ((IDeref)init).deref();
+      }
+    }
+    return init;
   }
 
   @Override
   public Iterator<?> iterator() {
-    return new SeqIterator(seq());
+    final Def.FieldPlan[] plans = def.plans();
+    final long[] bits = presence();
+    final Message message = message();
+    return new Iterator<Object>() {
+      private int next = nextPresent(bits, 0);
+      private Iterator<?> extIterator;
+
+      private Iterator<?> extIterator() {
+        if (extIterator == null) {
+          extIterator = new SeqIterator(RT.seq(ext));
+        }
+        return extIterator;
+      }
+
+      public boolean hasNext() {
+        return next >= 0 || extIterator().hasNext();
+      }
+
+      public Object next() {
+        if (next < 0) {
+          return extIterator().next();
+        }
+        Def.FieldPlan plan = plans[next];
+        next = nextPresent(bits, next + 1);
+        return new MapEntry(plan.key, fieldValue(plan, message));
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
   }
 
   @Override
   public int count() {
-    int count = RT.count(ext);
-    for (Descriptors.FieldDescriptor field : def.type.getFields()) {
-      if (protoContainsKey(field)) {
-        count++;
+    int count = this.count;
+    if (count < 0) {
+      count = RT.count(ext);
+      for (long word : presence()) {
+        count += Long.bitCount(word);
       }
+      this.count = count;
     }
     return count;
   }
 
   @Override
   public ISeq seq() {
-    return Seq.create(null, this, RT.seq(def.type.getFields()));
+    return Seq.create(null, this, 0);
+  }
+
+  @Override
+  public ITransientCollection asTransient() {
+    return new TransientProtocolBufferMap(this, builder(), ext);
   }
 
   @Override
@@ -833,32 +1944,30 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
   private static class Seq extends ASeq {
     private final PersistentProtocolBufferMap proto;
     private final MapEntry first;
-    private final ISeq fields;
-
-    public static ISeq create(IPersistentMap meta, PersistentProtocolBufferMap proto, ISeq fields) {
-      for (ISeq s = fields; s != null; s = s.next()) {
-        Descriptors.FieldDescriptor field = (Descriptors.FieldDescriptor)s.first();
-        Object k = proto.def.intern(field.getName());
-        Object v = proto.valAt(k, sentinel);
-        if (v != sentinel) {
-          return new Seq(meta, proto, new MapEntry(k, v), s);
-        }
+    private final int index;
+
+    public static ISeq create(IPersistentMap meta, PersistentProtocolBufferMap proto, int index) {
+      int i = nextPresent(proto.presence(), index);
+      if (i >= 0) {
+        Def.FieldPlan plan = proto.def.plans()[i];
+        Object v = proto.fieldValue(plan, proto.message());
+        return new Seq(meta, proto, new MapEntry(plan.key, v), i);
       }
       return RT.seq(proto.ext);
     }
 
     protected Seq(IPersistentMap meta, PersistentProtocolBufferMap proto, MapEntry first,
-            ISeq fields) {
+            int index) {
       super(meta);
       this.proto = proto;
       this.first = first;
-      this.fields = fields;
+      this.index = index;
     }
 
     @Override
     public Obj withMeta(IPersistentMap meta) {
       if (meta != meta()) {
-        return new Seq(meta, proto, first, fields);
+        return new Seq(meta, proto, first, index);
       }
       return this;
     }
@@ -870,7 +1979,7 @@ public class PersistentProtocolBufferMap extends APersistentMap implements IObj
 
     @Override
     public ISeq next() {
-      return create(meta(), proto, fields.next());
+      return create(meta(), proto, index + 1);
     }
   }
 }
@@ -0,0 +1,405 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.List;
+
+import clojure.lang.APersistentVector;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentStack;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ITransientCollection;
+import clojure.lang.PersistentVector;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+
+/**
+ * An immutable vector over a primitive array, used for the values of repeated numeric fields so
+ * that large samples are not held as one boxed object per element. Elements are boxed as they
+ * are read, to the same types DynamicMessage uses. Changing the vector, or making it transient,
+ * copies it into a PersistentVector.
+ */
+public abstract class PrimitiveVector extends APersistentVector implements IObj, IEditableCollection {
+  protected final int count;
+  private final IPersistentMap _meta;
+
+  PrimitiveVector(IPersistentMap meta, int count) {
+    this._meta = meta;
+    this.count = count;
+  }
+
+  /**
+   * Wrap a double[], float[], long[] or int[] without copying it, or return null for anything
+   * else. The array must not be modified afterwards.
+   */
+  public static PrimitiveVector wrap(Object array) {
+    if (array instanceof double[]) {
+      return new Doubles(null, (double[])array, ((double[])array).length);
+    } else if (array instanceof float[]) {
+      return new Floats(null, (float[])array, ((float[])array).length);
+    } else if (array instanceof long[]) {
+      return new Longs(null, (long[])array, ((long[])array).length);
+    } else if (array instanceof int[]) {
+      return new Ints(null, (int[])array, ((int[])array).length);
+    } else {
+      return null;
+    }
+  }
+
+  static boolean isNumeric(JavaType type) {
+    switch (type) {
+      case DOUBLE:
+      case FLOAT:
+      case LONG:
+      case INT:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Copy boxed values of the given numeric type into a vector, or return null if the type is not
+   * numeric.
+   */
+  static PrimitiveVector fromList(JavaType type, List<?> values) {
+    int n = values.size();
+    switch (type) {
+      case DOUBLE: {
+        double[] array = new double[n];
+        for (int i = 0; i < n; i++) {
+          array[i] = ((Number)values.get(i)).doubleValue();
+        }
+        return new Doubles(null, array, n);
+      }
+      case FLOAT: {
+        float[] array = new float[n];
+        for (int i = 0; i < n; i++) {
+          array[i] = ((Number)values.get(i)).floatValue();
+        }
+        return new Floats(null, array, n);
+      }
+      case LONG: {
+        long[] array = new long[n];
+        for (int i = 0; i < n; i++) {
+          array[i] = ((Number)values.get(i)).longValue();
+        }
+        return new Longs(null, array, n);
+      }
+      case INT: {
+        int[] array = new int[n];
+        for (int i = 0; i < n; i++) {
+          array[i] = ((Number)values.get(i)).intValue();
+        }
+        return new Ints(null, array, n);
+      }
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * The protobuf java type of the elements.
+   */
+  public abstract JavaType javaType();
+
+  /**
+   * The encoded size of element i as a value of the given field type, without its tag.
+   */
+  abstract int sizeNoTag(Descriptors.FieldDescriptor.Type type, int i);
+
+  abstract void writeNoTag(CodedOutputStream out, Descriptors.FieldDescriptor.Type type, int i)
+          throws IOException;
+
+  public int count() {
+    return count;
+  }
+
+  private IPersistentVector toPersistentVector() {
+    return PersistentVector.create(this).withMeta(_meta);
+  }
+
+  public IPersistentVector cons(Object o) {
+    return toPersistentVector().cons(o);
+  }
+
+  public IPersistentVector assocN(int i, Object val) {
+    return toPersistentVector().assocN(i, val);
+  }
+
+  public IPersistentStack pop() {
+    return toPersistentVector().pop();
+  }
+
+  public ITransientCollection asTransient() {
+    return ((IEditableCollection)toPersistentVector()).asTransient();
+  }
+
+  public IPersistentVector empty() {
+    return (IPersistentVector)PersistentVector.EMPTY.withMeta(_meta);
+  }
+
+  public IPersistentMap meta() {
+    return _meta;
+  }
+
+  protected void checkIndex(int i) {
+    if (i < 0 || i >= count) {
+      throw new IndexOutOfBoundsException();
+    }
+  }
+
+  public static final class Doubles extends PrimitiveVector {
+    private final double[] array;
+
+    Doubles(IPersistentMap meta, double[] array, int count) {
+      super(meta, count);
+      this.array = array;
+    }
+
+    public JavaType javaType() {
+      return JavaType.DOUBLE;
+    }
+
+    public double getDouble(int i) {
+      checkIndex(i);
+      return array[i];
+    }
+
+    public Object nth(int i) {
+      return getDouble(i);
+    }
+
+    int sizeNoTag(Descriptors.FieldDescriptor.Type type, int i) {
+      return 8;
+    }
+
+    void writeNoTag(CodedOutputStream out, Descriptors.FieldDescriptor.Type type, int i)
+            throws IOException {
+      out.writeDoubleNoTag(array[i]);
+    }
+
+    public Doubles withMeta(IPersistentMap meta) {
+      return new Doubles(meta, array, count);
+    }
+  }
+
+  public static final class Floats extends PrimitiveVector {
+    private final float[] array;
+
+    Floats(IPersistentMap meta, float[] array, int count) {
+      super(meta, count);
+      this.array = array;
+    }
+
+    public JavaType javaType() {
+      return JavaType.FLOAT;
+    }
+
+    public float getFloat(int i) {
+      checkIndex(i);
+      return array[i];
+    }
+
+    public Object nth(int i) {
+      return getFloat(i);
+    }
+
+    int sizeNoTag(Descriptors.FieldDescriptor.Type type, int i) {
+      return 4;
+    }
+
+    void writeNoTag(CodedOutputStream out, Descriptors.FieldDescriptor.Type type, int i)
+            throws IOException {
+      out.writeFloatNoTag(array[i]);
+    }
+
+    public Floats withMeta(IPersistentMap meta) {
+      return new Floats(meta, array, count);
+    }
+  }
+
+  public static final class Longs extends PrimitiveVector {
+    private final long[] array;
+
+    Longs(IPersistentMap meta, long[] array, int count) {
+      super(meta, count);
+      this.array = array;
+    }
+
+    public JavaType javaType() {
+      return JavaType.LONG;
+    }
+
+    public long getLong(int i) {
+      checkIndex(i);
+      return array[i];
+    }
+
+    public Object nth(int i) {
+      return getLong(i);
+    }
+
+    int sizeNoTag(Descriptors.FieldDescriptor.Type type, int i) {
+      return Wire.longSizeNoTag(type, array[i]);
+    }
+
+    void writeNoTag(CodedOutputStream out, Descriptors.FieldDescriptor.Type type, int i)
+            throws IOException {
+      Wire.writeLongNoTag(out, type, array[i]);
+    }
+
+    public Longs withMeta(IPersistentMap meta) {
+      return new Longs(meta, array, count);
+    }
+  }
+
+  public static final class Ints extends PrimitiveVector {
+    private final int[] array;
+
+    Ints(IPersistentMap meta, int[] array, int count) {
+      super(meta, count);
+      this.array = array;
+    }
+
+    public JavaType javaType() {
+      return JavaType.INT;
+    }
+
+    public int getInt(int i) {
+      checkIndex(i);
+      return array[i];
+    }
+
+    public Object nth(int i) {
+      return getInt(i);
+    }
+
+    int sizeNoTag(Descriptors.FieldDescriptor.Type type, int i) {
+      return Wire.intSizeNoTag(type, array[i]);
+    }
+
+    void writeNoTag(CodedOutputStream out, Descriptors.FieldDescriptor.Type type, int i)
+            throws IOException {
+      Wire.writeIntNoTag(out, type, array[i]);
+    }
+
+    public Ints withMeta(IPersistentMap meta) {
+      return new Ints(meta, array, count);
+    }
+  }
+
+  /**
+   * A growable primitive array that values of a repeated numeric field are read into straight
+   * off the wire. It is also a List of the boxed values, so it can stand in wherever the decoder
+   * expects one.
+   */
+  static final class Buffer extends AbstractList<Object> {
+    private final JavaType javaType;
+    private final Descriptors.FieldDescriptor.Type type;
+    private Object array;
+    private int size;
+
+    Buffer(Descriptors.FieldDescriptor field) {
+      this.javaType = field.getJavaType();
+      this.type = field.getType();
+      this.array = newArray(16);
+    }
+
+    private Buffer(Buffer buffer, int capacity) {
+      this.javaType = buffer.javaType;
+      this.type = buffer.type;
+      this.array = newArray(capacity);
+      System.arraycopy(buffer.array, 0, array, 0, buffer.size);
+      this.size = buffer.size;
+    }
+
+    private Object newArray(int capacity) {
+      switch (javaType) {
+        case DOUBLE: return new double[capacity];
+        case FLOAT:  return new float[capacity];
+        case LONG:   return new long[capacity];
+        default:     return new int[capacity];
+      }
+    }
+
+    private void ensureCapacity(int capacity) {
+      int length = Array.getLength(array);
+      if (capacity > length) {
+        Object bigger = newArray(Math.max(capacity, length * 2));
+        System.arraycopy(array, 0, bigger, 0, size);
+        array = bigger;
+      }
+    }
+
+    void read(CodedInputStream in) throws IOException {
+      ensureCapacity(size + 1);
+      switch (javaType) {
+        case DOUBLE: ((double[])array)[size] = in.readDouble(); break;
+        case FLOAT:  ((float[])array)[size] = in.readFloat(); break;
+        case LONG:   ((long[])array)[size] = Wire.readLong(in, type); break;
+        default:     ((int[])array)[size] = Wire.readInt(in, type); break;
+      }
+      size++;
+    }
+
+    @Override
+    public boolean add(Object value) {
+      ensureCapacity(size + 1);
+      Number n = (Number)value;
+      switch (javaType) {
+        case DOUBLE: ((double[])array)[size] = n.doubleValue(); break;
+        case FLOAT:  ((float[])array)[size] = n.floatValue(); break;
+        case LONG:   ((long[])array)[size] = n.longValue(); break;
+        default:     ((int[])array)[size] = n.intValue(); break;
+      }
+      size++;
+      return true;
+    }
+
+    @Override
+    public Object get(int i) {
+      if (i < 0 || i >= size) {
+        throw new IndexOutOfBoundsException();
+      }
+      return Array.get(array, i);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    Buffer concat(Buffer other) {
+      Buffer buffer = new Buffer(this, size + other.size);
+      System.arraycopy(other.array, 0, buffer.array, size, other.size);
+      buffer.size += other.size;
+      return buffer;
+    }
+
+    PrimitiveVector toVector() {
+      switch (javaType) {
+        case DOUBLE: return new Doubles(null, (double[])array, size);
+        case FLOAT:  return new Floats(null, (float[])array, size);
+        case LONG:   return new Longs(null, (long[])array, size);
+        default:     return new Ints(null, (int[])array, size);
+      }
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.IOException;
+
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Sequential;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import flatland.protobuf.PersistentProtocolBufferMap.Def;
+
+/**
+ * A field mask over a message type. Parsing through a projection only decodes the requested
+ * fields; everything else is skipped on the wire without being built. Fields are named by key,
+ * or by a path of keys for fields of nested messages, e.g. [:id [:parent :label]]. A path that
+ * ends at a message field keeps the whole nested message.
+ *
+ * Fields that were not requested are absent from the result, even those with a default value,
+ * which a map of the type would otherwise read as present. The maps remember their projection for
+ * this, so a field that is assoc'ed onto them later is present as usual. Required fields that were
+ * not requested are missing as well, so the message is only partially initialized and should not
+ * be expected to serialize back to the original one.
+ */
+public final class Projection {
+  // marks a field that is decoded in full
+  private static final Object ALL = new Object();
+
+  public final Def def;
+  // per field index: null to skip the field, ALL, or the Projection for a nested message
+  private final Object[] fields;
+
+  private Projection(Def def) {
+    this.def = def;
+    this.fields = new Object[def.plans().length];
+  }
+
+  public static Projection create(Def def, Object paths) {
+    Projection projection = new Projection(def);
+    for (ISeq s = RT.seq(paths); s != null; s = s.next()) {
+      Object path = s.first();
+      projection.add(path instanceof Sequential ? RT.seq(path) : RT.list(path));
+    }
+    return projection;
+  }
+
+  private void add(ISeq path) {
+    Object key = path.first();
+    Def.FieldPlan plan = def.fieldPlan(key);
+    if (plan == null) {
+      throw new IllegalArgumentException(
+        String.format("unknown field %s for message type %s", key, def.getFullName()));
+    }
+    int i = plan.field.getIndex();
+    ISeq rest = path.next();
+    if (rest == null) {
+      fields[i] = ALL;
+    } else if (plan.field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+      throw new IllegalArgumentException(
+        String.format("can't project %s inside non-message field %s", rest,
+                      plan.field.getFullName()));
+    } else if (fields[i] != ALL) {
+      if (fields[i] == null) {
+        fields[i] = new Projection(plan.messageDef());
+      }
+      ((Projection)fields[i]).add(rest);
+    }
+  }
+
+  public PersistentProtocolBufferMap parseFrom(byte[] bytes) throws IOException {
+    return parseFrom(CodedInputStream.newInstance(bytes));
+  }
+
+  public PersistentProtocolBufferMap parseFrom(CodedInputStream in) throws IOException {
+    in.setSizeLimit(def.sizeLimit);
+    Message.Builder builder = def.newBuilder();
+    read(in, builder);
+    return PersistentProtocolBufferMap.projected(def, builder.buildPartial(), this);
+  }
+
+  /**
+   * Read one length-delimited message from in, or return null at the end of input.
+   */
+  public PersistentProtocolBufferMap parseDelimitedFrom(CodedInputStream in) throws IOException {
+    if (in.isAtEnd()) {
+      return null;
+    }
+    in.resetSizeCounter();
+    in.setSizeLimit(def.sizeLimit);
+    int oldLimit = in.pushLimit(in.readRawVarint32());
+    Message.Builder builder = def.newBuilder();
+    read(in, builder);
+    in.checkLastTagWas(0);
+    in.popLimit(oldLimit);
+    return PersistentProtocolBufferMap.projected(def, builder.buildPartial(), this);
+  }
+
+  // whether field is one of the fields of def that are decoded
+  boolean requests(Descriptors.FieldDescriptor field) {
+    return field.getContainingType() == def.type && !field.isExtension()
+      && fields[field.getIndex()] != null;
+  }
+
+  // the projection of the nested messages in field, or null if they are decoded in full
+  Projection nested(Descriptors.FieldDescriptor field) {
+    if (field.getContainingType() != def.type || field.isExtension()) {
+      return null;
+    }
+    Object mask = fields[field.getIndex()];
+    return (mask instanceof Projection) ? (Projection)mask : null;
+  }
+
+  // def.defaultBits without the fields that are skipped
+  long[] defaultBits() {
+    long[] bits = def.defaultBits.clone();
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i] == null) {
+        bits[i >>> 6] &= ~(1L << i);
+      }
+    }
+    return bits;
+  }
+
+  private void read(CodedInputStream in, Message.Builder builder) throws IOException {
+    while (true) {
+      int tag = in.readTag();
+      if (tag == 0) {
+        return;
+      }
+      Def.FieldPlan plan = def.planByNumber(Wire.fieldNumber(tag));
+      Object mask = (plan == null) ? null : fields[plan.field.getIndex()];
+      if (mask == null) {
+        if (!in.skipField(tag)) {
+          return;
+        }
+        continue;
+      }
+
+      Descriptors.FieldDescriptor field = plan.field;
+      if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+        if (field.getType() == Descriptors.FieldDescriptor.Type.GROUP) {
+          throw new InvalidProtocolBufferException("groups are not supported: " + field.getFullName());
+        }
+        Message.Builder sub = (!field.isRepeated() && builder.hasField(field))
+          ? ((Message)builder.getField(field)).toBuilder()
+          : builder.newBuilderForField(field);
+        if (mask == ALL) {
+          in.readMessage(sub, ExtensionRegistryLite.getEmptyRegistry());
+        } else {
+          int oldLimit = in.pushLimit(in.readRawVarint32());
+          ((Projection)mask).read(in, sub);
+          in.checkLastTagWas(0);
+          in.popLimit(oldLimit);
+        }
+        if (field.isRepeated()) {
+          builder.addRepeatedField(field, sub.buildPartial());
+        } else {
+          builder.setField(field, sub.buildPartial());
+        }
+      } else if (!field.isRepeated()) {
+        Object value = Wire.readScalar(in, field);
+        if (value != null) {
+          builder.setField(field, value);
+        }
+      } else if (Wire.wireType(tag) == Wire.LENGTH_DELIMITED && Wire.isPackable(field)) {
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        while (in.getBytesUntilLimit() > 0) {
+          addValue(builder, field, Wire.readScalar(in, field));
+        }
+        in.popLimit(oldLimit);
+      } else {
+        addValue(builder, field, Wire.readScalar(in, field));
+      }
+    }
+  }
+
+  private static void addValue(Message.Builder builder, Descriptors.FieldDescriptor field,
+                               Object value) {
+    if (value != null) {
+      builder.addRepeatedField(field, value);
+    }
+  }
+}
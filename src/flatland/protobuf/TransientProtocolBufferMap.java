@@ -0,0 +1,155 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.util.Map;
+
+import clojure.lang.AFn;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientMap;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.RT;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+/**
+ * Transient counterpart of PersistentProtocolBufferMap. All edits go into a single live
+ * Message.Builder, so the message is only built once, when persistent! is called.
+ */
+public class TransientProtocolBufferMap extends AFn implements ITransientMap {
+  // the map this transient was created from; supplies the def, meta and value conversions
+  private final PersistentProtocolBufferMap proto;
+  private Message.Builder builder;
+  private ITransientMap ext;
+
+  protected TransientProtocolBufferMap(PersistentProtocolBufferMap proto,
+                                       Message.Builder builder, IPersistentMap ext) {
+    this.proto = proto;
+    this.builder = builder;
+    this.ext = (ext == null) ? null : (ITransientMap)((IEditableCollection)ext).asTransient();
+  }
+
+  private void ensureEditable() {
+    if (builder == null) {
+      throw new IllegalAccessError("Transient used after persistent! call");
+    }
+  }
+
+  private ITransientMap ext() {
+    if (ext == null) {
+      ext = (ITransientMap)PersistentArrayMap.EMPTY.asTransient();
+    }
+    return ext;
+  }
+
+  @Override
+  public TransientProtocolBufferMap assoc(Object key, Object value) {
+    ensureEditable();
+    if (!proto.addField(builder, key, value)) {
+      if (Metrics.enabled) {
+        proto.def.metrics.extFallback(key);
+      }
+      ext = ext().assoc(key, value);
+    }
+    return this;
+  }
+
+  @Override
+  public TransientProtocolBufferMap conj(Object o) {
+    ensureEditable();
+    if (o instanceof Map.Entry) {
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+      return assoc(e.getKey(), e.getValue());
+    } else if (o instanceof IPersistentVector) {
+      IPersistentVector v = (IPersistentVector)o;
+      if (v.count() != 2) {
+        throw new IllegalArgumentException("Vector arg to map conj must be a pair");
+      }
+      return assoc(v.nth(0), v.nth(1));
+    } else {
+      for (ISeq s = RT.seq(o); s != null; s = s.next()) {
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>)s.first();
+        assoc(e.getKey(), e.getValue());
+      }
+      return this;
+    }
+  }
+
+  @Override
+  public TransientProtocolBufferMap without(Object key) {
+    ensureEditable();
+    Descriptors.FieldDescriptor field = proto.def.fieldDescriptor(key);
+    if (field == null) {
+      if (ext != null) {
+        ext = ext.without(key);
+      }
+    } else if (field.isRequired()) {
+      throw new RuntimeException("Can't remove required field");
+    } else {
+      builder.clearField(field);
+    }
+    return this;
+  }
+
+  @Override
+  public PersistentProtocolBufferMap persistent() {
+    ensureEditable();
+    IPersistentMap ext = (this.ext == null) ? null : this.ext.persistent();
+    PersistentProtocolBufferMap result = proto.rebuilt(proto.meta(), ext, builder);
+    this.builder = null;
+    this.ext = null;
+    return result;
+  }
+
+  @Override
+  public Object valAt(Object key) {
+    return valAt(key, null);
+  }
+
+  @Override
+  public Object valAt(Object key, Object notFound) {
+    ensureEditable();
+    Descriptors.FieldDescriptor field = proto.def.fieldDescriptor(key);
+    if (PersistentProtocolBufferMap.hasField(builder, field, proto.projection)) {
+      return proto.fromProtoValue(field, builder.getField(field));
+    } else if (ext == null) {
+      return notFound;
+    } else {
+      return ext.valAt(key, notFound);
+    }
+  }
+
+  @Override
+  public int count() {
+    ensureEditable();
+    int count = (ext == null) ? 0 : ext.count();
+    for (Descriptors.FieldDescriptor field : proto.def.type.getFields()) {
+      if (PersistentProtocolBufferMap.hasField(builder, field, proto.projection)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public Object invoke(Object key) {
+    return valAt(key);
+  }
+
+  @Override
+  public Object invoke(Object key, Object notFound) {
+    return valAt(key, notFound);
+  }
+}
@@ -0,0 +1,296 @@
+/**
+ *   Copyright (c) Justin Balthrop. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *       the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package flatland.protobuf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Helpers for reading and writing field values straight off and onto the wire, for the decoders
+ * and encoders that bypass DynamicMessage. Values are boxed the same way DynamicMessage boxes
+ * them.
+ */
+final class Wire {
+  static final int VARINT = 0;
+  static final int FIXED64 = 1;
+  static final int LENGTH_DELIMITED = 2;
+  static final int START_GROUP = 3;
+  static final int END_GROUP = 4;
+  static final int FIXED32 = 5;
+
+  /**
+   * Returned by scanScalar when the field appears with a wire type other than the one its type
+   * is written with, e.g. because it was sent packed or under an older definition. A full parse
+   * decides what such values mean, so the caller should fall back to one.
+   */
+  static final Object MISMATCH = new Object();
+
+  private Wire() {}
+
+  static int wireType(int tag) {
+    return tag & 7;
+  }
+
+  static int fieldNumber(int tag) {
+    return tag >>> 3;
+  }
+
+  /**
+   * Whether a repeated field's values can be packed, and so may arrive as a single
+   * length-delimited run even if the field wasn't declared packed.
+   */
+  static boolean isPackable(Descriptors.FieldDescriptor field) {
+    switch (field.getType()) {
+      case STRING:
+      case BYTES:
+      case MESSAGE:
+      case GROUP:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Read a single non-message value. Enums are returned as their EnumValueDescriptor, or null if
+   * the number is not a known value of the enum (DynamicMessage drops these as unknown fields).
+   */
+  static Object readScalar(CodedInputStream in, Descriptors.FieldDescriptor field)
+          throws IOException {
+    switch (field.getType()) {
+      case DOUBLE:   return in.readDouble();
+      case FLOAT:    return in.readFloat();
+      case INT64:    return in.readInt64();
+      case UINT64:   return in.readUInt64();
+      case INT32:    return in.readInt32();
+      case FIXED64:  return in.readFixed64();
+      case FIXED32:  return in.readFixed32();
+      case BOOL:     return in.readBool();
+      case STRING:   return in.readString();
+      case BYTES:    return in.readBytes();
+      case UINT32:   return in.readUInt32();
+      case SFIXED32: return in.readSFixed32();
+      case SFIXED64: return in.readSFixed64();
+      case SINT32:   return in.readSInt32();
+      case SINT64:   return in.readSInt64();
+      case ENUM:     return field.getEnumType().findValueByNumber(in.readEnum());
+      default:
+        throw new InvalidProtocolBufferException(
+          String.format("can't read %s field %s directly", field.getType(), field.getFullName()));
+    }
+  }
+
+  /**
+   * Scan the rest of in for a singular non-message field, skipping every other field, and return
+   * its last value (the one a full parse would keep), null if it is not present, or MISMATCH if
+   * it appears with an unexpected wire type.
+   */
+  static Object scanScalar(CodedInputStream in, Descriptors.FieldDescriptor field)
+          throws IOException {
+    int number = field.getNumber();
+    int type = wireType(field.getType());
+    Object value = null;
+    while (true) {
+      int tag = in.readTag();
+      if (tag == 0) {
+        return value;
+      }
+      if (fieldNumber(tag) == number) {
+        if (wireType(tag) != type) {
+          return MISMATCH;
+        }
+        Object v = readScalar(in, field);
+        if (v != null) {
+          value = v;
+        }
+      } else if (!in.skipField(tag)) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Write value to out as a varint, in a single write call and without a CodedOutputStream.
+   */
+  static void writeRawVarint32(OutputStream out, int value) throws IOException {
+    byte[] buffer = new byte[5];
+    int n = 0;
+    while ((value & ~0x7f) != 0) {
+      buffer[n++] = (byte)((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buffer[n++] = (byte)value;
+    out.write(buffer, 0, n);
+  }
+
+  static int wireType(Descriptors.FieldDescriptor.Type type) {
+    switch (type) {
+      case DOUBLE:
+      case FIXED64:
+      case SFIXED64:
+        return FIXED64;
+      case FLOAT:
+      case FIXED32:
+      case SFIXED32:
+        return FIXED32;
+      case STRING:
+      case BYTES:
+      case MESSAGE:
+        return LENGTH_DELIMITED;
+      case GROUP:
+        return START_GROUP;
+      default:
+        return VARINT;
+    }
+  }
+
+  /**
+   * The encoded size of a single non-message value, without its tag.
+   */
+  static int sizeNoTag(Descriptors.FieldDescriptor.Type type, Object value) {
+    switch (type) {
+      case DOUBLE:   return CodedOutputStream.computeDoubleSizeNoTag((Double)value);
+      case FLOAT:    return CodedOutputStream.computeFloatSizeNoTag((Float)value);
+      case INT64:    return CodedOutputStream.computeInt64SizeNoTag((Long)value);
+      case UINT64:   return CodedOutputStream.computeUInt64SizeNoTag((Long)value);
+      case INT32:    return CodedOutputStream.computeInt32SizeNoTag((Integer)value);
+      case FIXED64:  return CodedOutputStream.computeFixed64SizeNoTag((Long)value);
+      case FIXED32:  return CodedOutputStream.computeFixed32SizeNoTag((Integer)value);
+      case BOOL:     return CodedOutputStream.computeBoolSizeNoTag((Boolean)value);
+      case STRING:   return CodedOutputStream.computeStringSizeNoTag((String)value);
+      case BYTES:    return CodedOutputStream.computeBytesSizeNoTag((ByteString)value);
+      case UINT32:   return CodedOutputStream.computeUInt32SizeNoTag((Integer)value);
+      case SFIXED32: return CodedOutputStream.computeSFixed32SizeNoTag((Integer)value);
+      case SFIXED64: return CodedOutputStream.computeSFixed64SizeNoTag((Long)value);
+      case SINT32:   return CodedOutputStream.computeSInt32SizeNoTag((Integer)value);
+      case SINT64:   return CodedOutputStream.computeSInt64SizeNoTag((Long)value);
+      case ENUM:
+        return CodedOutputStream.computeEnumSizeNoTag(
+          ((Descriptors.EnumValueDescriptor)value).getNumber());
+      default:
+        throw new IllegalArgumentException("can't compute the size of a " + type + " directly");
+    }
+  }
+
+  /**
+   * Write a single non-message value, without its tag.
+   */
+  static void writeNoTag(CodedOutputStream out, Descriptors.FieldDescriptor.Type type,
+                         Object value) throws IOException {
+    switch (type) {
+      case DOUBLE:   out.writeDoubleNoTag((Double)value); break;
+      case FLOAT:    out.writeFloatNoTag((Float)value); break;
+      case INT64:    out.writeInt64NoTag((Long)value); break;
+      case UINT64:   out.writeUInt64NoTag((Long)value); break;
+      case INT32:    out.writeInt32NoTag((Integer)value); break;
+      case FIXED64:  out.writeFixed64NoTag((Long)value); break;
+      case FIXED32:  out.writeFixed32NoTag((Integer)value); break;
+      case BOOL:     out.writeBoolNoTag((Boolean)value); break;
+      case STRING:   out.writeStringNoTag((String)value); break;
+      case BYTES:    out.writeBytesNoTag((ByteString)value); break;
+      case UINT32:   out.writeUInt32NoTag((Integer)value); break;
+      case SFIXED32: out.writeSFixed32NoTag((Integer)value); break;
+      case SFIXED64: out.writeSFixed64NoTag((Long)value); break;
+      case SINT32:   out.writeSInt32NoTag((Integer)value); break;
+      case SINT64:   out.writeSInt64NoTag((Long)value); break;
+      case ENUM:
+        out.writeEnumNoTag(((Descriptors.EnumValueDescriptor)value).getNumber());
+        break;
+      default:
+        throw new IllegalArgumentException("can't write a " + type + " directly");
+    }
+  }
+
+  // Primitive counterparts of readScalar, sizeNoTag and writeNoTag for 64 and 32 bit integer
+  // types, so repeated numeric fields can be read and written without boxing.
+
+  static long readLong(CodedInputStream in, Descriptors.FieldDescriptor.Type type)
+          throws IOException {
+    switch (type) {
+      case INT64:    return in.readInt64();
+      case UINT64:   return in.readUInt64();
+      case SINT64:   return in.readSInt64();
+      case FIXED64:  return in.readFixed64();
+      case SFIXED64: return in.readSFixed64();
+      default:
+        throw new IllegalArgumentException("not a 64 bit integer type: " + type);
+    }
+  }
+
+  static int readInt(CodedInputStream in, Descriptors.FieldDescriptor.Type type)
+          throws IOException {
+    switch (type) {
+      case INT32:    return in.readInt32();
+      case UINT32:   return in.readUInt32();
+      case SINT32:   return in.readSInt32();
+      case FIXED32:  return in.readFixed32();
+      case SFIXED32: return in.readSFixed32();
+      default:
+        throw new IllegalArgumentException("not a 32 bit integer type: " + type);
+    }
+  }
+
+  static int longSizeNoTag(Descriptors.FieldDescriptor.Type type, long value) {
+    switch (type) {
+      case INT64:    return CodedOutputStream.computeInt64SizeNoTag(value);
+      case UINT64:   return CodedOutputStream.computeUInt64SizeNoTag(value);
+      case SINT64:   return CodedOutputStream.computeSInt64SizeNoTag(value);
+      case FIXED64:
+      case SFIXED64: return 8;
+      default:
+        throw new IllegalArgumentException("not a 64 bit integer type: " + type);
+    }
+  }
+
+  static int intSizeNoTag(Descriptors.FieldDescriptor.Type type, int value) {
+    switch (type) {
+      case INT32:    return CodedOutputStream.computeInt32SizeNoTag(value);
+      case UINT32:   return CodedOutputStream.computeUInt32SizeNoTag(value);
+      case SINT32:   return CodedOutputStream.computeSInt32SizeNoTag(value);
+      case FIXED32:
+      case SFIXED32: return 4;
+      default:
+        throw new IllegalArgumentException("not a 32 bit integer type: " + type);
+    }
+  }
+
+  static void writeLongNoTag(CodedOutputStream out, Descriptors.FieldDescriptor.Type type,
+                             long value) throws IOException {
+    switch (type) {
+      case INT64:    out.writeInt64NoTag(value); break;
+      case UINT64:   out.writeUInt64NoTag(value); break;
+      case SINT64:   out.writeSInt64NoTag(value); break;
+      case FIXED64:  out.writeFixed64NoTag(value); break;
+      case SFIXED64: out.writeSFixed64NoTag(value); break;
+      default:
+        throw new IllegalArgumentException("not a 64 bit integer type: " + type);
+    }
+  }
+
+  static void writeIntNoTag(CodedOutputStream out, Descriptors.FieldDescriptor.Type type,
+                            int value) throws IOException {
+    switch (type) {
+      case INT32:    out.writeInt32NoTag(value); break;
+      case UINT32:   out.writeUInt32NoTag(value); break;
+      case SINT32:   out.writeSInt32NoTag(value); break;
+      case FIXED32:  out.writeFixed32NoTag(value); break;
+      case SFIXED32: out.writeSFixed32NoTag(value); break;
+      default:
+        throw new IllegalArgumentException("not a 32 bit integer type: " + type);
+    }
+  }
+}
@@ -1,54 +1,68 @@
 (ns flatland.protobuf.codec
   (:use flatland.protobuf.core
         [gloss.core.protocols :only [Reader Writer]]
-        [gloss.core.formats :only [to-buf-seq]]
         [flatland.useful.fn :only [fix]]
-        [flatland.useful.experimental :only [lift-meta]]
-        [clojure.java.io :only [input-stream]])
-
-  ;; flatland.io extends Seqable so we can concat InputStream from
-  ;; ByteBuffer sequences.
-  (:require flatland.io.core
-            [flatland.schematic.core :as schema]
-            [gloss.core :as gloss]))
+        [flatland.useful.experimental :only [lift-meta]])
+  (:require [flatland.schematic.core :as schema]
+            [gloss.core :as gloss])
+  (:import (flatland.protobuf PersistentProtocolBufferMap PersistentProtocolBufferMap$Def
+                              ByteBufferInputStream)
+           (com.google.protobuf CodedOutputStream Descriptors$FieldDescriptor$Type)
+           (java.nio ByteBuffer)))
 
 (declare protobuf-codec)
 
 (def ^{:private true} len-key :proto_length)
 (def ^{:private true} reset-key :codec_reset)
 
+(def ^{:private true} fixed-sizes
+  {Descriptors$FieldDescriptor$Type/FIXED32  4
+   Descriptors$FieldDescriptor$Type/SFIXED32 4
+   Descriptors$FieldDescriptor$Type/FIXED64  8
+   Descriptors$FieldDescriptor$Type/SFIXED64 8})
+
 (defn length-prefix [proto]
-  (let [proto (protodef proto)
-        min   (alength (protobuf-dump proto {len-key 0}))
-        max   (alength (protobuf-dump proto {len-key Integer/MAX_VALUE}))]
+  (let [^PersistentProtocolBufferMap$Def proto (protodef proto)
+        field (.fieldDescriptor proto len-key)]
     (letfn [(check [test msg]
               (when-not test
                 (throw (Exception. (format "In %s: %s %s"
                                            (.getFullName proto) (name len-key) msg)))))]
-      (check (pos? min)
+      (check field
              "field is required for repeated protobufs")
-      (check (= min max)
+      (check (fixed-sizes (.getType field))
              "must be of type fixed32 or fixed64"))
-    (gloss/compile-frame (gloss/finite-frame max (protobuf-codec proto))
+    ;; the prefix is a message holding only the length field, so its size is known up front
+    (gloss/compile-frame (gloss/finite-frame (+ (CodedOutputStream/computeTagSize (.getNumber field))
+                                                (fixed-sizes (.getType field)))
+                                             (protobuf-codec proto))
                          #(hash-map len-key %)
                          len-key)))
 
+(defn- read-buffers
+  "Parse a protobuf from a sequence of ByteBuffers without changing their positions. A single
+  buffer is parsed as a ByteBuffer, and several are streamed one after another rather than joined."
+  [^PersistentProtocolBufferMap$Def proto buf-seq]
+  (let [bufs (seq buf-seq)]
+    (if (next bufs)
+      (protobuf-load-stream proto (ByteBufferInputStream.
+                                   (.iterator ^Iterable (map #(.duplicate ^ByteBuffer %) bufs))))
+      (PersistentProtocolBufferMap/parseFrom proto ^ByteBuffer (or (first bufs)
+                                                                   (ByteBuffer/allocate 0))))))
+
 (defn protobuf-codec [proto & {:keys [validator repeated]}]
   (let [proto (protodef proto)]
     (-> (reify
           Reader
           (read-bytes [this buf-seq]
-            [true (protobuf-load-stream proto (input-stream buf-seq)) nil])
+            [true (read-buffers proto buf-seq) nil])
           Writer
           (sizeof [this] nil)
           (write-bytes [this _ val]
             (when (and validator (not (validator val)))
               (throw (IllegalStateException. "Invalid value in protobuf-codec")))
-            (to-buf-seq
-             (protobuf-dump
-              (if (protobuf? val)
-                val
-                (protobuf proto val))))))
+            ;; both paths encode into an array sized up front from the serialized size
+            (list (ByteBuffer/wrap (protobuf-dump proto val)))))
         (fix repeated
              #(gloss/repeated (gloss/finite-frame (length-prefix proto) %)
                               :prefix :none)))))
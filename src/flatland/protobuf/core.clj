@@ -1,11 +1,17 @@
 (ns flatland.protobuf.core
   (:use [flatland.protobuf.schema :only [field-schema]]
         [flatland.useful.fn :only [fix]]
-        [clojure.java.io :only [input-stream output-stream]])
-  (:require flatland.useful.utils)
-  (:import (flatland.protobuf PersistentProtocolBufferMap PersistentProtocolBufferMap$Def PersistentProtocolBufferMap$Def$NamingStrategy Extensions)
-           (com.google.protobuf GeneratedMessage CodedInputStream Descriptors$Descriptor)
-           (java.io InputStream OutputStream)
+        [clojure.java.io :only [input-stream output-stream file]])
+  (:require flatland.useful.utils clojure.core.protocols)
+  (:import (flatland.protobuf PersistentProtocolBufferMap PersistentProtocolBufferMap$Def PersistentProtocolBufferMap$Def$NamingStrategy Extensions
+                              MappedDelimitedReader DelimitedWriter ParallelDelimitedReader
+                              ClojureDecoder ClojureEncoder Projection OffHeapStore Metrics
+                              DelimitedDecoder DelimitedDecoder$Handler DelimitedChannelWriter ColumnBatch)
+           (com.google.protobuf GeneratedMessage CodedInputStream Descriptors$Descriptor Message)
+           (java.io Closeable InputStream OutputStream)
+           (java.util Iterator Queue)
+           (java.nio.channels GatheringByteChannel)
+           (java.nio ByteBuffer)
            (clojure.lang Reflector)))
 
 (defn protobuf?
@@ -18,23 +24,46 @@
   [obj]
   (instance? PersistentProtocolBufferMap$Def obj))
 
+(defn ^PersistentProtocolBufferMap$Def$NamingStrategy naming-strategy
+  "Create a naming strategy from two functions: proto-name, from a map key to a field name, and
+  clojure-name, from a field name to a map key. Each is only called once per field name or key,
+  so they need not be fast."
+  [proto-name clojure-name]
+  (reify PersistentProtocolBufferMap$Def$NamingStrategy
+    (protoName [_ key] (proto-name key))
+    (clojureName [_ field-name] (clojure-name field-name))))
+
+(defn register-naming-strategy
+  "Make strategy available as the :naming-strategy option of protodef under the given name.
+  :underscores (the default), :protobuf, :camel-case and :identity are built in."
+  [name ^PersistentProtocolBufferMap$Def$NamingStrategy strategy]
+  (PersistentProtocolBufferMap$Def/registerNamingStrategy name strategy))
+
 (defn ^PersistentProtocolBufferMap$Def protodef
-  "Create a protodef from a string or protobuf class."
+  "Create a protodef from a string or protobuf class. If def is a generated protobuf class and the
+  :generated option is true, messages are parsed and built with that class instead of
+  DynamicMessage. The :naming-strategy option is a naming strategy or the name of a registered
+  one."
   ([def]
      (if (or (protodef? def) (nil? def))
        def
        (protodef def {})))
   ([def opts]
      (when def
-       (let [{:keys [^PersistentProtocolBufferMap$Def$NamingStrategy naming-strategy
-                     size-limit]
+       (let [{:keys [naming-strategy size-limit generated]
               :or {naming-strategy PersistentProtocolBufferMap$Def/convertUnderscores
                    size-limit 67108864}} opts ;; 64MiB
-             ^Descriptors$Descriptor descriptor
-             (if (instance? Descriptors$Descriptor def)
-               def
-               (Reflector/invokeStaticMethod ^Class def "getDescriptor" (to-array nil)))]
-         (PersistentProtocolBufferMap$Def/create descriptor naming-strategy size-limit)))))
+             naming-strategy (PersistentProtocolBufferMap$Def/namingStrategy naming-strategy)]
+         (if (instance? Descriptors$Descriptor def)
+           (PersistentProtocolBufferMap$Def/create ^Descriptors$Descriptor def
+                                                   naming-strategy size-limit)
+           (if generated
+             (let [^Message prototype (Reflector/invokeStaticMethod ^Class def "getDefaultInstance"
+                                                                    (to-array nil))]
+               (PersistentProtocolBufferMap$Def/create prototype naming-strategy size-limit))
+             (let [^Descriptors$Descriptor descriptor
+                   (Reflector/invokeStaticMethod ^Class def "getDescriptor" (to-array nil))]
+               (PersistentProtocolBufferMap$Def/create descriptor naming-strategy size-limit))))))))
 
 (defn protobuf
   "Construct a protobuf of the given type."
@@ -51,16 +80,53 @@
   (let [^PersistentProtocolBufferMap$Def def (apply protodef args)]
     (field-schema (.getMessageType def) def)))
 
+(defn ^Projection protobuf-projection
+  "Return a projection of the given type onto the given fields. Each field is a key, or a vector
+  of keys naming a field inside nested messages. Loading through a projection skips every other
+  field on the wire instead of decoding it. Fields that were not requested are absent from the
+  loaded maps, even if they have a default value."
+  [^PersistentProtocolBufferMap$Def type fields]
+  (Projection/create type fields))
+
+(defn- projection [type fields]
+  (if (instance? Projection fields)
+    fields
+    (protobuf-projection type fields)))
+
 (defn protobuf-load
-  "Load a protobuf of the given type from an array of bytes."
+  "Load a protobuf of the given type from an array of bytes. If fields are given, as a collection
+  of keys and key paths or a projection, only those fields are decoded."
   ([^PersistentProtocolBufferMap$Def type ^bytes data]
      (when data
        (PersistentProtocolBufferMap/create type data)))
+  ([^PersistentProtocolBufferMap$Def type ^bytes data fields]
+     (when data
+       (.parseFrom ^Projection (projection type fields) data)))
   ([^PersistentProtocolBufferMap$Def type ^bytes data ^Integer offset ^Integer length]
      (when data
        (let [^CodedInputStream in (CodedInputStream/newInstance data offset length)]
          (PersistentProtocolBufferMap/parseFrom type in)))))
 
+(defn protobuf-load-lazy
+  "Wrap an array of bytes as a protobuf of the given type without parsing it. The bytes are only
+  parsed when the protobuf is first used as a whole, single fields are looked up by scanning the
+  bytes, and dumping or writing it copies the original bytes. data must not be modified
+  afterwards."
+  [^PersistentProtocolBufferMap$Def type ^bytes data]
+  (when data
+    (PersistentProtocolBufferMap/createLazy type data)))
+
+(defn protobuf-load-data
+  "Load a protobuf of the given type from an array of bytes straight into plain Clojure data,
+  without building a PersistentProtocolBufferMap. Extension fields are decoded the same way, but
+  messages come back as ordinary persistent maps."
+  ([^PersistentProtocolBufferMap$Def type ^bytes data]
+     (when data
+       (ClojureDecoder/parseFrom type data)))
+  ([^PersistentProtocolBufferMap$Def type ^bytes data ^Integer offset ^Integer length]
+     (when data
+       (ClojureDecoder/parseFrom type (CodedInputStream/newInstance data offset length)))))
+
 (defn protobuf-load-stream
   "Load a protobuf of the given type from an InputStream."
   [^PersistentProtocolBufferMap$Def type ^InputStream stream]
@@ -68,37 +134,235 @@
     (let [^CodedInputStream in (CodedInputStream/newInstance stream)]
       (PersistentProtocolBufferMap/parseFrom type in))))
 
+(defn protobuf-load-buffer
+  "Load a protobuf of the given type from the remaining bytes of a ByteBuffer. Heap buffers are
+  read from their backing array, and direct and memory-mapped buffers are copied out in one bulk
+  get. The buffer's position is left unchanged."
+  [^PersistentProtocolBufferMap$Def type ^ByteBuffer buffer]
+  (when buffer
+    (PersistentProtocolBufferMap/parseFrom type buffer)))
+
 (defn ^"[B" protobuf-dump
-  "Return the byte representation of the given flatland.protobuf."
+  "Return the byte representation of the given flatland.protobuf. Given a type and a plain map,
+  encode the map directly, without constructing a protobuf first."
   ([^PersistentProtocolBufferMap p]
      (.toByteArray p))
   ([^PersistentProtocolBufferMap$Def type m]
-     (protobuf-dump (PersistentProtocolBufferMap/construct type m))))
+     (ClojureEncoder/encode type m)))
 
 (defn protobuf-seq
-  "Lazily read a sequence of length-delimited protobufs of the specified type from the given input stream."
+  "Lazily read a sequence of length-delimited protobufs of the specified type from the given input stream.
+  If fields are given, as a collection of keys and key paths or a projection, only those fields are
+  decoded."
+  ([^PersistentProtocolBufferMap$Def type in]
+     (lazy-seq
+      (io!
+       (let [^InputStream in (input-stream in)]
+         (if-let [p (PersistentProtocolBufferMap/parseDelimitedFrom type in)]
+           (cons p (protobuf-seq type in))
+           (.close in))))))
+  ([^PersistentProtocolBufferMap$Def type in fields]
+     (let [^Projection projection (projection type fields)]
+       (lazy-seq
+        (io!
+         (let [^InputStream in (input-stream in)]
+           ((fn step [^CodedInputStream coded]
+              (lazy-seq
+               (io!
+                (if-let [p (.parseDelimitedFrom projection coded)]
+                  (cons p (step coded))
+                  (.close in)))))
+            (CodedInputStream/newInstance in))))))))
+
+(defmacro ^{:private true} if-resolves
+  "Expand to then if sym resolves when this namespace is compiled, and to else otherwise, so that
+  code using protocols from newer Clojure versions still loads on older ones."
+  ([sym then]
+     `(if-resolves ~sym ~then nil))
+  ([sym then else]
+     (if (resolve sym) then else)))
+
+(def ^{:private true} reduced-value?
+  ;; reduced only exists as of Clojure 1.5; before that a reduction can't stop early.
+  (if-let [reduced? (resolve 'clojure.core/reduced?)]
+    @reduced?
+    (constantly false)))
+
+(defn protobuf-reducible
+  "Return a reducible source of the length-delimited protobufs of the specified type in the given
+  input. Each reduction opens the input, reads every record through a single CodedInputStream and
+  closes the input as soon as the reduction ends, including when it stops early with reduced or
+  throws. Unlike protobuf-seq, no seq is created, so it is well suited to reduce and transduce
+  over large files. Clojure 1.3 has no CollReduce, so there it is reduced through a protobuf-seq."
   [^PersistentProtocolBufferMap$Def type in]
+  (if-resolves clojure.core.protocols/CollReduce
+    (letfn [(reduce-input [f init ^CodedInputStream coded]
+              (loop [acc init]
+                (if-let [p (PersistentProtocolBufferMap/parseDelimitedFrom type coded)]
+                  (let [acc (f acc p)]
+                    (if (reduced-value? acc)
+                      @acc
+                      (recur acc)))
+                  acc)))]
+      (reify clojure.core.protocols/CollReduce
+        (coll-reduce [this f]
+          (io!
+           (with-open [^InputStream stream (input-stream in)]
+             (let [coded (CodedInputStream/newInstance stream)]
+               (if-let [p (PersistentProtocolBufferMap/parseDelimitedFrom type coded)]
+                 (reduce-input f p coded)
+                 (f))))))
+        (coll-reduce [this f init]
+          (io!
+           (with-open [^InputStream stream (input-stream in)]
+             (reduce-input f init (CodedInputStream/newInstance stream)))))))
+    (reify clojure.lang.Seqable
+      (seq [this]
+        (seq (protobuf-seq type in))))))
+
+(defn- closing-seq
+  "Lazy seq over a closeable iterator, closing it once the seq is fully consumed."
+  [^Iterator reader]
   (lazy-seq
    (io!
-    (let [^InputStream in (input-stream in)]
-      (if-let [p (PersistentProtocolBufferMap/parseDelimitedFrom type in)]
-        (cons p (protobuf-seq type in))
-        (.close in))))))
+    (if (.hasNext reader)
+      (cons (.next reader) (closing-seq reader))
+      (.close ^Closeable reader)))))
+
+(defn protobuf-mapped-seq
+  "Lazily read a sequence of length-delimited protobufs of the specified type from the given file
+  through a memory-mapped window that slides along the file. Only one window is mapped at a time,
+  and the last one is released when the sequence is fully consumed."
+  [^PersistentProtocolBufferMap$Def type f]
+  (closing-seq (MappedDelimitedReader. type (file f))))
+
+(defn protobuf-pseq
+  "Lazily read a sequence of length-delimited protobufs of the specified type from the given input
+  stream, parsing records in parallel. Only the length prefixes are read on the consuming thread.
+  Options:
+    :ordered        return records in input order (default true)
+    :max-in-flight  how many records to read ahead (default twice the number of processors)
+    :executor       the ExecutorService to parse on (default a shared ForkJoinPool)"
+  [^PersistentProtocolBufferMap$Def type in & {:keys [ordered max-in-flight executor]
+                                                :or {ordered true
+                                                     max-in-flight (* 2 (.availableProcessors
+                                                                         (Runtime/getRuntime)))}}]
+  (closing-seq (ParallelDelimitedReader. type (input-stream in) executor max-in-flight ordered)))
+
+(defn ^DelimitedWriter protobuf-writer
+  "Open a writer for length-delimited protobufs on the given output stream. Messages are encoded
+  into one pooled buffer that is drained to the stream when full. If flush-bytes is given, the
+  stream is also flushed every time that many bytes have been written to it. Call .finish on the
+  writer to flush it without closing the stream, or .close to close both."
+  ([out]
+     (protobuf-writer out {}))
+  ([out {:keys [buffer-size flush-bytes]
+         :or {buffer-size DelimitedWriter/DEFAULT_BUFFER_SIZE
+              flush-bytes 0}}]
+     (DelimitedWriter. (output-stream out) buffer-size flush-bytes)))
+
+(defn- write-each [^DelimitedWriter writer coll]
+  (reduce (fn [_ p]
+            (.write writer p))
+          nil coll))
+
+(defn protobuf-write-all
+  "Write every protobuf in coll to the given writer. coll can be any seq or reducible collection,
+  and is consumed incrementally rather than realized up front."
+  [^DelimitedWriter writer coll]
+  (io!
+   (write-each writer coll)
+   (.flush writer)))
 
 (defn protobuf-write
   "Write the given protobufs to the given output stream, prefixing each with its length to delimit them."
   [out & ps]
   (io!
-   (let [^OutputStream out (output-stream out)]
-     (doseq [^PersistentProtocolBufferMap p ps]
-       (.writeDelimitedTo p out))
-     (.flush out))))
+   (let [writer (protobuf-writer out)]
+     (write-each writer ps)
+     (.finish writer))))
+
+(defn ^DelimitedDecoder protobuf-decoder
+  "Create a decoder for length-delimited protobufs of the given type that is pushed ByteBuffer
+  chunks as they arrive, with .decode, or reads what a channel has available, with .read. Each
+  complete protobuf is passed to handler, which is either a function or a java.util.Queue."
+  [^PersistentProtocolBufferMap$Def type handler]
+  (if (instance? Queue handler)
+    (DelimitedDecoder. type ^Queue handler)
+    (DelimitedDecoder. type (reify DelimitedDecoder$Handler
+                              (message [_ p] (handler p))))))
+
+(defn ^DelimitedChannelWriter protobuf-channel-writer
+  "Create a writer of length-delimited protobufs to the given channel. Queue protobufs with .add
+  and send them with .flush, which writes all queued protobufs in one gathering write and returns
+  false if a non-blocking channel could not take all of it."
+  [^GatheringByteChannel channel]
+  (DelimitedChannelWriter. channel))
+
+(defn ^ColumnBatch protobuf-columns
+  "Decode the given singular scalar fields of many records of the given type into one primitive
+  column per field. records is either a collection of byte arrays and ByteBuffers, or an
+  InputStream of length-delimited records. Use .column on the result to get a column by key, and
+  .values, .isPresent and .presence on a column; string, bytes and enum columns hold codes into
+  their .dictionary."
+  [^PersistentProtocolBufferMap$Def type fields records]
+  (let [batch (ColumnBatch/create type fields)]
+    (if (instance? InputStream records)
+      (.addDelimited batch records)
+      (.addAll batch records))
+    batch))
+
+(defn ^OffHeapStore protobuf-store
+  "Create a store for protobufs of the given type, keyed by long, that keeps serialized records
+  in off-heap slabs. Use .put, .get, .remove and .compact on it; .get returns lazy protobufs.
+  Options:
+    :slab-size  the size of each direct buffer records are appended to (default 64MB)
+    :capacity   how many records to size the key table for up front (default 1024)"
+  [^PersistentProtocolBufferMap$Def type & {:keys [slab-size capacity]
+                                            :or {slab-size OffHeapStore/DEFAULT_SLAB_SIZE
+                                                 capacity 1024}}]
+  (OffHeapStore. type slab-size capacity))
+
+(defn protobuf-metrics
+  "Return what has been recorded for the given type since metrics were enabled: a map from
+  :parse, :parse-delimited, :serialize and :convert to their counts, times, sizes and log2
+  histograms, plus per-field :conversions and the number of :ext-fallbacks."
+  [^PersistentProtocolBufferMap$Def type]
+  (.snapshot (.metrics type)))
+
+(defn reset-protobuf-metrics!
+  "Forget everything recorded for the given type so far."
+  [^PersistentProtocolBufferMap$Def type]
+  (.reset (.metrics type)))
+
+(defn enable-protobuf-metrics!
+  "Turn recording of protobuf metrics (and JFR events, where available) on or off for all types."
+  [on?]
+  (Metrics/setEnabled (boolean on?)))
+
+(if-resolves clojure.core.protocols/IKVReduce
+  (extend-protocol clojure.core.protocols/IKVReduce
+    PersistentProtocolBufferMap
+    (kv-reduce [^PersistentProtocolBufferMap this f init]
+      (.kvreduce this f init))))
 
 (extend-protocol flatland.useful.utils/Adjoin
   PersistentProtocolBufferMap
   (adjoin-onto [^PersistentProtocolBufferMap this other]
     (.append this other)))
 
+(defn protobuf-compact
+  "Fold the counter, succession, map_by, map and set fields of p that hold more than one entry, so
+  that it reads the same but no longer carries every merged entry."
+  [^PersistentProtocolBufferMap p]
+  (.compact p))
+
+(defn adjoin-compact
+  "Like adjoin for protobufs, but compacts the fields that were merged, so repeatedly adjoining
+  deltas onto a protobuf does not grow it without bound."
+  [^PersistentProtocolBufferMap p other]
+  (.appendCompact p other))
+
 ;; TODO make this nil-safe? Or just delete it?
 (defn get-raw
   "Get value at key ignoring extension fields."
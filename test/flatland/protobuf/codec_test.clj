@@ -46,6 +46,21 @@
         (is (= {:nested {:foo 4 :bar 3 :baz 5 :tags ["bar" "baz" "foo"] :nested {:tag-set #{"a" "b"}}}}
                (decode codec (concat data1 data2 data3))))))))
 
+(deftest split-buffers
+  (let [codec (protobuf-codec flatland.protobuf.test.Codec$Foo)
+        val   {:foo 1 :bar 2 :tags ["a" "b" "c"]}
+        buf   ^ByteBuffer (contiguous (encode codec val))
+        bytes (byte-array (.remaining buf))
+        _     (.get (.duplicate buf) bytes)
+        split (for [[start end] [[0 3] [3 4] [4 (alength bytes)]]]
+                (ByteBuffer/wrap bytes start (- end start)))]
+    (is (= val (decode codec split)))
+    (is (= val (decode codec (map #(doto (ByteBuffer/allocateDirect (.remaining ^ByteBuffer %))
+                                    (.put (.duplicate ^ByteBuffer %))
+                                    (.flip))
+                                  split))))
+    (is (= 3 (.remaining ^ByteBuffer (first split))))))
+
 (deftest repeated-protobufs
   (let [len   (length-prefix flatland.protobuf.test.Codec$Foo)
         codec (protobuf-codec flatland.protobuf.test.Codec$Foo :repeated true)]
@@ -3,7 +3,13 @@
         [flatland.io.core :only [catbytes]]
         [flatland.useful.utils :only [adjoin]]
         ordered-map.core)
-  (:import (java.io PipedInputStream PipedOutputStream)))
+  (:import (java.io File PipedInputStream PipedOutputStream)
+           (java.nio ByteBuffer)
+           (flatland.protobuf MappedDelimitedReader PersistentProtocolBufferMap$Def$FieldPlan)
+           (com.google.protobuf Descriptors$FileDescriptor DescriptorProtos$FileDescriptorProto
+                                DescriptorProtos$DescriptorProto DescriptorProtos$FieldDescriptorProto
+                                DescriptorProtos$FieldDescriptorProto$Type
+                                DescriptorProtos$FieldDescriptorProto$Label)))
 
 (def Foo      (protodef flatland.protobuf.test.Core$Foo))
 (def FooUnder (protodef flatland.protobuf.test.Core$Foo
@@ -12,6 +18,7 @@
 (def Response (protodef flatland.protobuf.test.Core$Response))
 (def ErrorMsg (protodef flatland.protobuf.test.Core$ErrorMsg))
 (def Maps     (protodef flatland.protobuf.test.Maps$Struct))
+(def FooGen   (protodef flatland.protobuf.test.Core$Foo {:generated true}))
 
 (deftest test-conj
   (let [p (protobuf Foo :id 5 :tags ["little" "yellow"] :doubles [1.2 3.4 5.6] :floats [0.01 0.02 0.03])]
@@ -86,6 +93,207 @@
               2 {:id 2, :label "two", :deleted false}}
              (:foo-by-id p))))))
 
+(deftest test-transient
+  (let [p (protobuf Foo :id 5 :tags ["little" "yellow"])
+        t (transient p)]
+    (assoc! t :label "baz")
+    (conj! t {:tags ["nuprin"] :some-key 10})
+    (dissoc! t :id)
+    (is (= "baz" (:label t)))
+    (is (= 10 (:some-key t)))
+    (let [q (persistent! t)]
+      (is (protobuf? q))
+      (is (= {:id 43 :label "baz" :tags ["nuprin"] :deleted false :some-key 10} q))
+      (is (= {:id 5 :tags ["little" "yellow"] :deleted false} p))
+      (is (thrown? IllegalAccessError (assoc! t :label "again")))))
+  (let [p (into (protobuf Foo) {:id 7 :label "seven" :foo-by-id {1 {:label "one"}}})]
+    (is (protobuf? p))
+    (is (= 7 (:id p)))
+    (is (= "one" (get-in p [:foo-by-id 1 :label])))))
+
+(deftest test-cached-values
+  (let [p (protobuf Foo :id 5 :foo-by-id {1 {:label "one"} 2 {:label "two"}} :tag-set #{"a" "b"})]
+    (is (identical? (:foo-by-id p) (:foo-by-id p)))
+    (is (identical? (:tag-set p) (:tag-set p)))
+    (is (identical? (:foo-by-id p) (:foo-by-id (with-meta p {:a 1}))))
+    (let [q (assoc p :foo-by-id {3 {:label "three"}})]
+      (is (= {3 {:id 3 :label "three" :deleted false}} (:foo-by-id q)))
+      (is (= #{1 2} (set (keys (:foo-by-id p))))))
+    (let [q (dissoc p :tag-set)]
+      (is (nil? (:tag-set q)))
+      (is (= #{"a" "b"} (:tag-set p))))))
+
+(deftest test-generated
+  (let [m {:id 5 :label "gen" :tags ["a" "b"] :tag-set #{"x"} :responses [:yes :no]
+           :foo-by-id {1 {:label "one"}} :counts {"c" {:i 3}} :parent {:id 9}}
+        p (protobuf FooGen m)
+        q (protobuf Foo m)]
+    (is (instance? flatland.protobuf.test.Core$Foo (.message p)))
+    (is (instance? flatland.protobuf.test.Core$Foo (.message (:parent p))))
+    (is (= q p))
+    (is (= "one" (get-in p [:foo-by-id 1 :label])))
+    (is (= 3 (get-in p [:counts "c" :i])))
+    (is (= (seq (protobuf-dump q)) (seq (protobuf-dump p))))
+    (is (= p (protobuf-load FooGen (protobuf-dump q))))
+    (is (= q (protobuf-load Foo (protobuf-dump p))))
+    (let [p (assoc p :parent (protobuf Foo :label "dynamic parent"))]
+      (is (= "dynamic parent" (get-in p [:parent :label])))
+      (is (instance? flatland.protobuf.test.Core$Foo (.message (:parent p))))))
+  (let [m {:groups {"g" [{:label "x"} {:label "y" :groups {"h" [{:id 2}]}}]}
+           :attr-map {"k" "v"} :tag-set #{"a" "b"}}
+        p (protobuf FooGen m)
+        q (protobuf-load FooGen (protobuf-dump (protobuf Foo m)))]
+    (doseq [p [p q]]
+      (is (= ["x" "y"] (map :label (get-in p [:groups "g"]))))
+      (is (every? #(instance? flatland.protobuf.test.Core$Foo (.message %))
+                  (concat (get-in p [:groups "g"])
+                          (get-in p [:groups "g" 1 :groups "h"]))))
+      (is (= 2 (get-in p [:groups "g" 1 :groups "h" 0 :id])))
+      (is (= {"k" "v"} (:attr-map p)))
+      (is (= #{"a" "b"} (:tag-set p))))))
+
+(deftest test-generated-getters
+  (let [getter (fn [field]
+                 (when-let [m (PersistentProtocolBufferMap$Def$FieldPlan/generatedGetter
+                               flatland.protobuf.test.Core$Foo field)]
+                   (.getName m)))
+        foo    (.getMessageType Foo)
+        fields {"class"               DescriptorProtos$FieldDescriptorProto$Type/TYPE_STRING
+                "serialized_size"     DescriptorProtos$FieldDescriptorProto$Type/TYPE_INT32
+                "descriptor_for_type" DescriptorProtos$FieldDescriptorProto$Type/TYPE_STRING}
+        clash  (-> (DescriptorProtos$FileDescriptorProto/newBuilder)
+                   (.setName "clash.proto")
+                   (.addMessageType
+                    (reduce (fn [b [i [name type]]]
+                              (.addField b (-> (DescriptorProtos$FieldDescriptorProto/newBuilder)
+                                               (.setName name)
+                                               (.setNumber (int (inc i)))
+                                               (.setType type)
+                                               (.setLabel DescriptorProtos$FieldDescriptorProto$Label/LABEL_OPTIONAL))))
+                            (.setName (DescriptorProtos$DescriptorProto/newBuilder) "Clash")
+                            (map-indexed vector fields)))
+                   (.build)
+                   (Descriptors$FileDescriptor/buildFrom (into-array Descriptors$FileDescriptor []))
+                   (.findMessageTypeByName "Clash"))]
+    (is (= "getLabel" (getter (.findFieldByName foo "label"))))
+    (is (= "getTagsList" (getter (.findFieldByName foo "tags"))))
+    (testing "fields named like methods every message has don't bind those methods"
+      (doseq [name (keys fields)]
+        (is (nil? (getter (.findFieldByName clash name))))))))
+
+(deftest test-def-cache
+  (is (identical? Foo (protodef flatland.protobuf.test.Core$Foo)))
+  (is (identical? FooGen (protodef flatland.protobuf.test.Core$Foo {:generated true})))
+  (is (not (identical? Foo FooUnder)))
+  (let [p (protobuf Foo :parent {:id 1 :parent {:id 2}})]
+    (is (identical? Foo (.def (:parent p))))
+    (is (identical? Foo (.def (get-in p [:parent :parent]))))))
+
+(deftest test-field-lookup
+  (let [^flatland.protobuf.PersistentProtocolBufferMap$Def def Foo]
+    (is (= "tag_set" (.getName (.fieldDescriptor def :tag-set))))
+    (is (= "tag_set" (.getName (.fieldDescriptor def "tag-set"))))
+    (is (= "tag_set" (.getName (.fieldDescriptor def :tag_set))))
+    (is (identical? (.fieldPlan def :tag_set) (.fieldPlan def :tag-set)))
+    (is (nil? (.fieldDescriptor def :nope)))
+    (is (nil? (.fieldPlan def :nope))))
+  (let [p (protobuf Foo :tag_set #{"a"} :unknown 1)]
+    (is (= #{"a"} (:tag-set p) (:tag_set p)))
+    (is (= 1 (:unknown p)))))
+
+(deftest test-naming-strategies
+  (is (identical? FooUnder (protodef flatland.protobuf.test.Core$Foo {:naming-strategy :protobuf})))
+  (is (identical? Foo (protodef flatland.protobuf.test.Core$Foo {:naming-strategy :underscores})))
+  (let [camel (protodef flatland.protobuf.test.Core$Foo {:naming-strategy :camel-case})
+        ident (protodef flatland.protobuf.test.Core$Foo {:naming-strategy :identity})]
+    (is (= ["a"] (:tags (protobuf camel :tags ["a"]))))
+    (is (= #{"x"} (:tag-set (protobuf camel :tag-set #{"x"}))))
+    (is (= #{"x"} (:tag_set (protobuf ident :tag_set #{"x"})))))
+  (let [calls (atom 0)
+        upper (naming-strategy (fn [k] (swap! calls inc) (.toLowerCase (name k)))
+                               (fn [n] (swap! calls inc) (keyword (.toUpperCase ^String n))))]
+    (register-naming-strategy ::upper upper)
+    (let [def (protodef flatland.protobuf.test.Core$Foo {:naming-strategy ::upper})
+          p   (protobuf def :LABEL "a" :TAGS ["b"])]
+      (is (= "a" (:LABEL p)))
+      (let [n @calls]
+        (dotimes [_ 10] (:LABEL (protobuf def :LABEL "a")))
+        (is (= n @calls)))))
+  (let [prefixed (naming-strategy (fn [k] (let [n (name k)]
+                                            (if (.startsWith n "f-") (subs n 2) (str n "?"))))
+                                  (fn [n] (keyword (str "f-" n))))
+        def      (protodef flatland.protobuf.test.Core$Foo {:naming-strategy prefixed})
+        p        (protobuf def :f-label "a")]
+    (is (= "a" (:f-label p) (get p "f-label")))
+    (testing "raw field names only resolve if the strategy maps them"
+      (is (nil? (get p "label")))
+      (is (nil? (get p :label)))))
+  (is (thrown? IllegalArgumentException
+               (protodef flatland.protobuf.test.Core$Foo {:naming-strategy ::nope}))))
+
+(deftest test-hash-and-equality
+  (let [p (protobuf Foo :id 5 :tags ["a"] :counts {"x" {:i 1}})
+        q (protobuf-load Foo (protobuf-dump p))]
+    (is (= p q))
+    (is (.equals p q))
+    (is (= (hash p) (hash q) (hash (into {} p))))
+    (is (= (.hashCode p) (.hashCode q) (.hashCode (into {} p))))
+    (is (= (hash p) (hash (with-meta p {:a 1}))))
+    (is (= 1 (count (distinct [p q (with-meta q {:b 2})]))))
+    (is (= p (into {} p)))
+    (is (= (into {} p) p))
+    (is (not= p (assoc p :id 6)))
+    (is (not= p (assoc p :other 1)))
+    (is (not (.equals p (assoc p :id 6)))))
+  ;; different messages that read the same are still equal
+  (is (= (protobuf Foo :id 43) (protobuf Foo)))
+  (is (= (adjoin (protobuf Foo :counts {"x" {:i 1}}) {:counts {"x" {:i 2}}})
+         (protobuf Foo :counts {"x" {:i 3}})))
+  (let [bytes (protobuf-dump (protobuf Foo :id 7))]
+    (is (= (protobuf-load-lazy Foo bytes) (protobuf-load-lazy Foo bytes)))
+    (is (not= (protobuf-load-lazy Foo bytes) (protobuf-load-lazy Foo (protobuf-dump (protobuf Foo :id 8)))))))
+
+(deftest test-metrics
+  (reset-protobuf-metrics! ErrorMsg)
+  (let [p (protobuf ErrorMsg :code 1 :data "x")]
+    (protobuf-load ErrorMsg (protobuf-dump p))
+    (is (zero? (get-in (protobuf-metrics ErrorMsg) [:parse :count])))
+    (enable-protobuf-metrics! true)
+    (try
+      (let [q (protobuf-load ErrorMsg (protobuf-dump p))
+            out (java.io.ByteArrayOutputStream.)]
+        (:data q)
+        (assoc q :other 1)
+        (.writeDelimitedTo p out)
+        (doall (protobuf-seq ErrorMsg (java.io.ByteArrayInputStream. (.toByteArray out)))))
+      (finally
+        (enable-protobuf-metrics! false)))
+    (let [m (protobuf-metrics ErrorMsg)
+          size (count (protobuf-dump p))]
+      (is (= 1 (get-in m [:parse :count])))
+      (is (= size (get-in m [:parse :bytes])))
+      (is (= 1 (get-in m [:parse-delimited :count])))
+      (is (= size (get-in m [:parse-delimited :bytes])))
+      (is (= 2 (get-in m [:serialize :count])))
+      (is (= 1 (get-in m [:conversions :data])))
+      (is (= 1 (:ext-fallbacks m)))
+      (is (= (get-in m [:parse :count]) (reduce + (get-in m [:parse :latency])))))
+    (reset-protobuf-metrics! ErrorMsg)
+    (is (zero? (get-in (protobuf-metrics ErrorMsg) [:serialize :count])))))
+
+(deftest test-populated-fields
+  (let [p (protobuf Foo :id 5 :tags ["a"] :tag-set #{"x"})
+        q (assoc p :other 1)]
+    (is (= 4 (count p)))
+    (is (= 5 (count q)))
+    (is (= [:id :tags :tag-set :deleted] (keys p)))
+    (is (= [:id :tags :tag-set :deleted :other] (map key (iterator-seq (.iterator q)))))
+    (when-let [reduce-kv (resolve 'clojure.core/reduce-kv)]
+      (is (= {:id 5 :tags ["a"] :tag-set #{"x"} :deleted false :other 1}
+             (@reduce-kv assoc {} q))))
+    (is (= 3 (count (protobuf Bar :int 1 :str nil :enu :b))))
+    (is (= 0 (count (protobuf Bar))))))
+
 (deftest test-dissoc
   (let [p (protobuf Foo :id 5 :tags ["fast" "shiny"] :label "nice")]
     (let [p (dissoc p :label :tags)]
@@ -181,6 +389,108 @@
     (is (= #{"bap" "baz"} (s :tag-set)))
     (is (= false (r :deleted)))))
 
+(deftest test-load-data
+  (let [p (protobuf Foo :id 5 :label "rad" :tags ["sweet"] :tag-set #{"foo" "bar" "baz"}
+                    :responses [:yes :not-sure] :doubles [1.5 2.5] :parent {:id 9 :label "dad"}
+                    :foo-by-id {1 {:label "one"}} :attr-map {"a" "b"} :counts {"c" {:i 1 :d 2.0}}
+                    :time {:year 1978} :groups {"g" [{:id 7}]})
+        q (protobuf Foo :id 43 :tags ["savory"] :tag-set {"bar" false "bap" true}
+                    :parent {:tags ["x"]} :foo-by-id {1 {:tags ["t"]} 2 {:label "two"}}
+                    :counts {"c" {:i 4 :d -1.0}} :time {:year 1974 :month 1})
+        bytes (catbytes (protobuf-dump p) (protobuf-dump q))
+        data  (protobuf-load-data Foo bytes)]
+    (is (not (protobuf? data)))
+    (is (not (protobuf? (:parent data))))
+    (is (= (protobuf-load Foo bytes) data))
+    (is (= (protobuf-load Foo (protobuf-dump p)) (protobuf-load-data Foo (protobuf-dump p)))))
+  (let [p (protobuf Bar :int nil :str "s" :enu nil :labels ["a" nil])]
+    (is (= p (protobuf-load-data Bar (protobuf-dump p)))))
+  (doseq [map-key [:element-map-e :element-by-id-e :element-map-d :element-by-id-d]]
+    (let [p (protobuf Maps map-key {"A" {:foo 1 :exists false :deleted true} "B" {:foo 2}})
+          q (protobuf Maps map-key {"A" {:bar 1 :exists true :deleted false} "B" {:bar 2}})
+          bytes (catbytes (protobuf-dump p) (protobuf-dump q))]
+      (is (= (protobuf-load Maps bytes) (protobuf-load-data Maps bytes))))))
+
+(deftest test-dump-data
+  (let [m {:id 5 :label "rad" :tags ["sweet"] :tag-set #{"foo" "bar"} :responses [:yes :not-sure]
+           :doubles [1.5 2.5] :parent {:id 9 :label "dad"} :foo-by-id {1 {:label "one"}}
+           :attr-map {"a" "b"} :counts {"c" {:i 1 :d 2.0}} :time {:year 1978}
+           :groups {"g" [{:id 7}]} :unknown "ignored"}]
+    (is (= (seq (protobuf-dump (protobuf Foo m)))
+           (seq (protobuf-dump Foo m))))
+    (is (= (seq (protobuf-dump (protobuf Foo m)))
+           (seq (protobuf-dump Foo (assoc m :parent (protobuf Foo :id 9 :label "dad")))))))
+  (let [m {:int nil :str "s" :enu nil :labels ["a" nil]}]
+    (is (= (seq (protobuf-dump (protobuf Bar m)))
+           (seq (protobuf-dump Bar m)))))
+  (is (thrown? com.google.protobuf.UninitializedMessageException
+               (protobuf-dump Response {})))
+  (is (thrown-with-msg? IllegalArgumentException #"error setting string field flatland.protobuf.test.core.Foo.label to 8"
+        (protobuf-dump Foo {:label 8}))))
+
+(deftest test-projection
+  (let [p (protobuf Foo :id 5 :label "rad" :tags ["a" "b"] :doubles [1.5 2.5]
+                    :parent {:id 9 :label "dad" :tags ["x"]} :tag-set #{"foo"}
+                    :foo-by-id {1 {:label "one" :tags ["y"]}})
+        bytes (protobuf-dump p)]
+    (is (= {:id 5 :tags ["a" "b"]}
+           (protobuf-load Foo bytes [:id :tags])))
+    (is (= {:doubles [1.5 2.5] :parent {:label "dad"} :tag-set #{"foo"}}
+           (protobuf-load Foo bytes [:doubles [:parent :label] :tag-set])))
+    (is (= {:parent (protobuf Foo :id 9 :label "dad" :tags ["x"])
+            :foo-by-id {1 {:id 1 :label "one"}}}
+           (protobuf-load Foo bytes (protobuf-projection Foo [[:parent :tags] :parent
+                                                              [:foo-by-id :label]
+                                                              [:foo-by-id :id]]))))
+    (testing "fields with defaults are absent when not requested"
+      (let [p (protobuf-load Foo bytes [:label [:parent :label]])]
+        (is (not (contains? p :id)))
+        (is (= :missing (get p :id :missing)))
+        (is (not-any? #{:id :deleted} (keys p)))
+        (is (not (contains? (:parent p) :id)))
+        (is (= 7 (:id (assoc p :id 7))))
+        (is (not (contains? (assoc p :label "new") :id)))))
+    (is (thrown? IllegalArgumentException (protobuf-projection Foo [:nope])))
+    (is (thrown? IllegalArgumentException (protobuf-projection Foo [[:label :id]]))))
+  (let [in  (PipedInputStream.)
+        out (PipedOutputStream. in)]
+    (protobuf-write out (protobuf Foo :id 1 :label "foo") (protobuf Foo :id 2 :label "bar"))
+    (.close out)
+    (is (= [{:id 1 :deleted false} {:id 2 :deleted false}]
+           (protobuf-seq Foo in [:id :deleted])))))
+
+(deftest test-load-lazy
+  (let [p (protobuf Foo :label "rad" :tags ["a" "b"] :lat 1.5 :parent {:id 9})
+        bytes (catbytes (protobuf-dump p) (protobuf-dump (protobuf Foo :label "bad")))
+        lazy  (protobuf-load-lazy Foo bytes)]
+    (is (= "bad" (:label lazy)))
+    (is (= 43 (:id lazy)))
+    (is (= 1.5 (:lat lazy)))
+    (is (nil? (:long lazy)))
+    (is (= :missing (get lazy :long :missing)))
+    (is (not (.isParsed lazy)))
+    (is (= (seq bytes) (seq (protobuf-dump lazy))))
+    (is (= lazy (protobuf-load Foo bytes)))
+    (is (.isParsed lazy))
+    (is (= ["a" "b"] (:tags lazy)))
+    (is (= "rad" (:label (assoc (protobuf-load-lazy Foo bytes) :label "rad")))))
+  (let [lazy (protobuf-load-lazy Foo (protobuf-dump (protobuf Foo :id 3)))]
+    (is (= 3 (:id (with-meta lazy {:a 1}))))
+    (is (= (protobuf Foo :id 3)
+           (protobuf-load-stream Foo (java.io.ByteArrayInputStream. (protobuf-dump lazy)))))
+    (let [out (java.io.ByteArrayOutputStream.)]
+      (.writeDelimitedTo lazy out)
+      (.writeDelimitedTo lazy out)
+      (is (= [lazy lazy] (protobuf-seq Foo (java.io.ByteArrayInputStream. (.toByteArray out)))))))
+  (testing "a field with an unexpected wire type is read by a full parse"
+    ;; field 1 (id, a varint) as fixed32, which a parse keeps as an unknown field
+    (let [bytes (catbytes (byte-array (map byte [13 1 0 0 0]))
+                          (protobuf-dump (protobuf Foo :label "x")))
+          lazy  (protobuf-load-lazy Foo bytes)]
+      (is (= 43 (:id lazy)))
+      (is (.isParsed lazy))
+      (is (= "x" (:label lazy))))))
+
 (deftest test-map-exists
   (doseq [map-key [:element-map-e :element-by-id-e]]
     (let [p (protobuf Maps map-key {"A" {:foo 1}
@@ -321,6 +631,74 @@
       (is (= [{:year 1978, :month 11, :day 24} {:year 1974, :month 1}]
              (get-raw p :time))))))
 
+(deftest test-compact
+  (let [p (protobuf Foo :label "x" :time {:year 1978 :month 11} :tag-set #{"foo" "bar"}
+                    :counts {"a" {:i 1 :d 1.5}} :attr-map {"k" "v"}
+                    :things {"first" {:marked false}} :groups {"g" [{:id 1}]})
+        deltas [{:time {:year 1974}} {:tag-set {"foo" false "baz" true}}
+                {:counts {"a" {:i 2} "b" {:i 5}}} {:counts {"a" {:i 3 :d 0.5}}}
+                {:attr-map {"k" "w"}} {:things {"first" {:marked true} "second" {:marked false}}}]
+        appended  (reduce adjoin p deltas)
+        compacted (reduce adjoin-compact p deltas)]
+    (is (= appended compacted))
+    (is (= (protobuf-compact appended) compacted))
+    (is (= "x" (:label compacted)))
+    (is (= 1 (count (get-raw compacted :time))))
+    (is (= 3 (count (get-raw compacted :tag-set))))
+    (is (= 2 (count (get-raw compacted :counts))))
+    (is (= [6] (get-raw (get-in compacted [:counts "a"]) :i)))
+    (is (= 1 (count (get-raw compacted :attr-map))))
+    (is (= 2 (count (get-raw compacted :things)))))
+  (testing "removals from sets survive compaction"
+    (let [base  (protobuf Foo :tag-set #{"a" "b"})
+          delta (adjoin (protobuf Foo :tag-set #{"c"}) {:tag-set {"a" false}})]
+      (is (= #{"b" "c"} (:tag-set (adjoin base (protobuf-compact delta)))))
+      (is (= (adjoin base delta) (adjoin-compact base (protobuf-compact delta))))))
+  (let [p (protobuf Foo :id 1)]
+    (is (identical? p (protobuf-compact p)))))
+
+(deftest test-protobuf-store
+  (let [store (protobuf-store Foo :slab-size 64 :capacity 2)
+        foos  (into {} (for [i (range 100)]
+                         [(long i) (protobuf Foo :id i :label (str "foo" i))]))]
+    (doseq [[k p] foos]
+      (.put store k p))
+    (is (= 100 (.size store)))
+    (is (= (foos 42) (.get store 42)))
+    (is (nil? (.get store 100)))
+    (.put store 42 (protobuf Foo :id 42 :label "replaced"))
+    (is (= "replaced" (:label (.get store 42))))
+    (doseq [k (range 0 100 3)]
+      (is (.remove store k)))
+    (is (not (.remove store 0)))
+    (is (pos? (.garbageBytes store)))
+    (.compact store)
+    (is (zero? (.garbageBytes store)))
+    (doseq [k (range 100)]
+      (if (zero? (mod k 3))
+        (is (not (.containsKey store k)))
+        (is (= (str "foo" k) (:label (.get store k))))))
+    (is (thrown? IllegalArgumentException
+                 (.put store 1000 (protobuf Foo :label (apply str (repeat 100 "x"))))))))
+
+(deftest test-primitive-vectors
+  (let [p (protobuf Foo :doubles (double-array [1.5 2.5]) :floats [0.5 1.5])]
+    (is (instance? flatland.protobuf.PrimitiveVector (:doubles p)))
+    (is (instance? flatland.protobuf.PrimitiveVector (:floats p)))
+    (is (= [1.5 2.5] (:doubles p)))
+    (is (= [(float 0.5) (float 1.5)] (:floats p)))
+    (is (= 2.5 (.getDouble ^flatland.protobuf.PrimitiveVector$Doubles (:doubles p) 1)))
+    (is (= [1.5 2.5 3.5] (conj (:doubles p) 3.5)))
+    (is (= [1.5 2.5 3.5 4.5] (persistent! (reduce conj! (transient (:doubles p)) [3.5 4.5]))))
+    (is (= {:a 1} (meta (with-meta (:doubles p) {:a 1}))))
+    (is (= (seq (protobuf-dump p))
+           (seq (protobuf-dump Foo {:doubles (double-array [1.5 2.5]) :floats (float-array [0.5 1.5])}))))
+    (is (= [0.0 1.0] (:doubles (protobuf Foo :doubles (int-array [0 1])))))
+    (is (= [0.0 1.0] (:doubles (protobuf-load Foo (protobuf-dump Foo {:doubles (int-array [0 1])})))))
+    (let [data (protobuf-load-data Foo (catbytes (protobuf-dump p) (protobuf-dump p)))]
+      (is (instance? flatland.protobuf.PrimitiveVector (:doubles data)))
+      (is (= [1.5 2.5 1.5 2.5] (:doubles data))))))
+
 (deftest test-nullable
   (let [p (protobuf Bar :int 1 :long 330000000000 :flt 1.23 :dbl 9.87654321 :str "foo" :enu :a)
         keyset #{:int :long :flt :dbl :str :enu}]
@@ -459,6 +837,163 @@
             {:id 3, :label "baz", :deleted false}]
            (protobuf-seq Foo in)))))
 
+(deftest test-protobuf-load-buffer
+  (let [p     (protobuf Foo :id 7 :label "seven" :tags ["a" "b"])
+        bytes (protobuf-dump p)
+        heap  (ByteBuffer/wrap (catbytes (byte-array 3) bytes) 3 (alength bytes))
+        heap  (.slice heap)
+        direct (doto (ByteBuffer/allocateDirect (alength bytes))
+                 (.put bytes)
+                 (.flip))]
+    (is (= p (protobuf-load-buffer Foo heap)))
+    (is (= p (protobuf-load-buffer Foo direct)))
+    (is (= 0 (.position direct)))))
+
+(deftest test-protobuf-mapped-seq
+  (let [f  (File/createTempFile "protobuf" ".bin")
+        ps (for [i (range 100)]
+             (protobuf Foo :id i :label (str "label " i)))]
+    (try
+      (apply protobuf-write f ps)
+      (is (= ps (protobuf-mapped-seq Foo f)))
+      (testing "windows smaller than the file are remapped as the reader moves along"
+        (let [reader (MappedDelimitedReader. Foo f 64)]
+          (is (= ps (iterator-seq reader)))
+          (.close reader)))
+      (finally
+       (.delete f)))))
+
+(deftest test-protobuf-writer
+  (let [out (java.io.ByteArrayOutputStream.)
+        ps  (for [i (range 1000)]
+              (protobuf Foo :id i :tags (repeat (mod i 7) "tag")))
+        big (protobuf Foo :id 1000 :label (apply str (repeat 100 "x")))]
+    (with-open [writer (protobuf-writer out {:buffer-size 64 :flush-bytes 256})]
+      (protobuf-write-all writer ps)
+      (protobuf-write-all writer [big]))
+    (is (= (concat ps [big])
+           (protobuf-seq Foo (java.io.ByteArrayInputStream. (.toByteArray out)))))))
+
+(deftest test-protobuf-reducible
+  (let [out    (java.io.ByteArrayOutputStream.)
+        ps     (for [i (range 100)]
+                 (protobuf Foo :id i))
+        closed (atom 0)
+        in     #(proxy [java.io.ByteArrayInputStream] [(.toByteArray out)]
+                  (close []
+                    (swap! closed inc)))]
+    (apply protobuf-write out ps)
+    (is (= (reduce + (range 100))
+           (reduce (fn [sum p] (+ sum (:id p))) 0 (protobuf-reducible Foo (in)))))
+    (is (= 1 @closed))
+    (is (= 99 (:id (reduce (fn [_ p] p) (protobuf-reducible Foo (in))))))
+    (is (= 2 @closed))
+    (when-let [reduced (resolve 'clojure.core/reduced)]
+      (is (= 10 (reduce (fn [n p]
+                          (if (= 10 (:id p))
+                            (@reduced n)
+                            (inc n)))
+                        0 (protobuf-reducible Foo (in)))))
+      (is (= 3 @closed)))))
+
+(deftest test-protobuf-pseq
+  (let [out (java.io.ByteArrayOutputStream.)
+        ps  (for [i (range 500)]
+              (protobuf Foo :id i :tags [(str i)]))
+        in  #(java.io.ByteArrayInputStream. (.toByteArray out))]
+    (apply protobuf-write out ps)
+    (is (= ps (protobuf-pseq Foo (in))))
+    (is (= ps (protobuf-pseq Foo (in) :max-in-flight 3)))
+    (is (= (set ps) (set (protobuf-pseq Foo (in) :ordered false))))))
+
+(deftest test-protobuf-decoder
+  (let [ps    (for [i (range 200)]
+                (protobuf Foo :id i :label (apply str (repeat (mod i 20) "x"))))
+        out   (java.io.ByteArrayOutputStream.)
+        _     (apply protobuf-write out ps)
+        bytes (.toByteArray out)
+        got   (java.util.concurrent.LinkedBlockingQueue.)
+        dec   (protobuf-decoder Foo got)]
+    (doseq [i (range (count bytes))]
+      (.decode dec (ByteBuffer/wrap bytes i 1)))
+    (is (.isIdle dec))
+    (is (= ps (seq got)))
+    (.clear got)
+    (doseq [chunk (partition-all 37 bytes)]
+      (.decode dec (doto (ByteBuffer/allocateDirect (count chunk))
+                     (.put (byte-array chunk))
+                     (.flip))))
+    (is (= ps (seq got)))
+    (let [small (protodef flatland.protobuf.test.Core$Foo {:size-limit 10})]
+      (is (thrown? com.google.protobuf.InvalidProtocolBufferException
+                   (.decode (protobuf-decoder small identity)
+                            (ByteBuffer/wrap (protobuf-dump (last ps)))))))
+    (testing "loopback"
+      (let [server (doto (java.nio.channels.ServerSocketChannel/open)
+                     (-> .socket (.bind (java.net.InetSocketAddress. "127.0.0.1" 0))))
+            port   (.getLocalPort (.socket server))
+            sent   (future
+                     (with-open [client (java.nio.channels.SocketChannel/open
+                                         (java.net.InetSocketAddress. "127.0.0.1" port))]
+                       (let [writer (protobuf-channel-writer client)]
+                         (doseq [p ps]
+                           (.add writer p))
+                         (.flush writer))))
+            result (atom [])]
+        (try
+          (with-open [conn (doto (.accept server)
+                             (.configureBlocking false))
+                      selector (java.nio.channels.Selector/open)]
+            (.register conn selector java.nio.channels.SelectionKey/OP_READ)
+            (let [dec (protobuf-decoder Foo #(swap! result conj %))
+                  buf (ByteBuffer/allocate 100)]
+              (loop []
+                (.select selector)
+                (.clear (.selectedKeys selector))
+                (when-not (neg? (.read dec conn buf))
+                  (recur)))))
+          (is @sent)
+          (is (= ps @result))
+          (finally
+            (.close server)))))))
+
+(deftest test-protobuf-columns
+  (let [ps     (for [i (range 100)]
+                 (if (zero? (mod i 10))
+                   (protobuf Foo :label "none")
+                   (protobuf Foo :id i :label (str "l" (mod i 3)) :lat (/ i 2.0) :deleted (odd? i))))
+        batch  (protobuf-columns Foo [:id :label :lat :deleted] (map protobuf-dump ps))
+        column #(.column batch %)
+        decode (fn [k]
+                 (let [col (column k)]
+                   (map #(.get (.dictionary col) %) (.values col))))
+        present (fn [batch k]
+                  (map #(.isPresent (.column batch k) %) (range (.count batch))))]
+    (is (= 100 (.count batch)))
+    (is (= (map :id ps) (seq (.values (column :id)))))
+    (is (every? true? (present batch :id)))
+    (is (= (map :label ps) (decode :label)))
+    (is (= 4 (count (.dictionary (column :label)))))
+    (is (= (map #(contains? % :lat) ps) (present batch :lat)))
+    (is (= (keep :lat ps) (keep-indexed (fn [i v] (when (.isPresent (column :lat) i) v))
+                                        (.values (column :lat)))))
+    (is (= (map :deleted ps) (seq (.values (column :deleted)))))
+    (let [out (java.io.ByteArrayOutputStream.)]
+      (apply protobuf-write out ps)
+      (is (= (map :id ps)
+             (seq (.values (.column (protobuf-columns Foo [:id] (java.io.ByteArrayInputStream. (.toByteArray out)))
+                                    :id))))))
+    (let [bars  [(protobuf Bar :int 1 :long 2 :flt 2.5 :dbl 1.5 :str "a" :enu :b)
+                 (protobuf Bar :int nil :long nil :flt nil :dbl nil :str nil :enu nil)
+                 (protobuf Bar)]
+          batch (protobuf-columns Bar [:int :long :flt :dbl :str :enu] (map protobuf-dump bars))]
+      (doseq [k [:int :long :flt :dbl :str :enu]]
+        (is (= [true false false] (present batch k))))
+      (is (= :b (.get (.dictionary (.column batch :enu)) (first (.values (.column batch :enu))))))
+      (is (= 2.5 (first (.values (.column batch :flt))))))
+    (is (thrown? IllegalArgumentException (protobuf-columns Foo [:tags] [])))
+    (is (thrown? IllegalArgumentException (protobuf-columns Foo [:parent] [])))))
+
 (deftest test-encoding-errors
   (is (thrown-with-msg? IllegalArgumentException #"error setting string field flatland.protobuf.test.core.Foo.label to 8"
         (protobuf Foo :label 8)))